@@ -0,0 +1,31 @@
+package com.wyn.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+* 缓存变更监听的配置，hmdp.cache.cdc
+* rules：表名 -> 缓存key模板，{id}替换为变更行的主键，例如 tb_shop: cache:shop:{id}
+* */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache.cdc")
+public class CacheChangeProperties {
+
+    private boolean enabled = false;
+
+    /*轮询间隔(毫秒)，同一个间隔内的多次变更合并为一次删除*/
+    private long pollMs = 200;
+
+    /*每次最多读取的变更数*/
+    private int batchSize = 500;
+
+    /*延迟双删的间隔(毫秒)，为0时不做第二次删除*/
+    private long doubleDeleteDelayMs = 500;
+
+    private Map<String, String> rules = new HashMap<>();
+}
@@ -1,13 +1,18 @@
 package com.wyn.config;
 
 import com.wyn.utils.LoginInterceptor;
+import com.wyn.utils.RateLimitInterceptor;
+import com.wyn.utils.RateLimiter;
 import com.wyn.utils.RefreshTokenInterceptor;
+import com.wyn.utils.SignedTokenService;
+import com.wyn.utils.TokenSessionCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.Resource;
+import java.util.Arrays;
 
 /**
  * @author Unreal
@@ -17,14 +22,28 @@ import javax.annotation.Resource;
 public class MVCConfig implements WebMvcConfigurer {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenSessionCache tokenSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    /*反向代理地址，逗号分隔，只有来自这些地址的请求才读取X-Forwarded-For*/
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    private String[] trustedProxies;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         /*存在多个拦截器时，在没有配置order()的情况下，默认按配置的顺序来执行，
             及先配先执行，也可通过设置order值来决定，值越小优先级越高*/
+        /*登录相关接口限流，最先执行，超限时不再访问其他Redis数据*/
+        registry.addInterceptor(new RateLimitInterceptor(rateLimiter, Arrays.asList(trustedProxies)))
+                .addPathPatterns("/user/code", "/user/login").order(-1);
+
         /*默认拦截所有路径*/
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(tokenSessionCache, signedTokenService)).order(0);
 
         registry.addInterceptor(new LoginInterceptor())
                 .excludePathPatterns(
@@ -0,0 +1,34 @@
+package com.wyn.config;
+
+import com.wyn.utils.CacheCodec;
+import com.wyn.utils.JsonCacheCodec;
+import com.wyn.utils.SmileCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+/*
+* CaCheClient使用的RedisTemplate及编解码器
+* hmdp.cache.codec：json(默认，与之前的缓存格式兼容)/smile(二进制)
+* 切换编解码器后，旧格式的缓存需要先清除或等待过期
+* */
+@Configuration
+public class RedisCacheConfig {
+
+    @Bean
+    public RedisTemplate<String, byte[]> cacheRedisTemplate(RedisConnectionFactory connectionFactory) {
+        RedisTemplate<String, byte[]> template = new RedisTemplate<>();
+        template.setConnectionFactory(connectionFactory);
+        template.setKeySerializer(RedisSerializer.string());
+        template.setValueSerializer(RedisSerializer.byteArray());
+        return template;
+    }
+
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec) {
+        return "smile".equalsIgnoreCase(codec) ? new SmileCacheCodec() : new JsonCacheCodec();
+    }
+}
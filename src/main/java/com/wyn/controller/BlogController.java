@@ -5,9 +5,7 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.wyn.dto.Result;
 import com.wyn.dto.UserDTO;
 import com.wyn.entity.Blog;
-import com.wyn.entity.User;
 import com.wyn.service.IBlogService;
-import com.wyn.service.IUserService;
 import com.wyn.utils.SystemConstants;
 import com.wyn.utils.UserHolder;
 import org.springframework.web.bind.annotation.*;
@@ -26,30 +24,29 @@ public class BlogController {
 
     @Resource
     private IBlogService blogService;
-    @Resource
-    private IUserService userService;
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        blog.setUserId(user.getId());
-        // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        // 保存探店博文，并推送给粉丝
+        return blogService.saveBlog(blog);
     }
 
     @PutMapping("/like/{id}")
     public Result likeBlog(@PathVariable("id") Long id) {
-        // 修改点赞数量
-        blogService.update()
-                .setSql("liked = liked + 1").eq("id", id).update();
-        return Result.ok();
+        // 点赞或取消点赞，点赞数异步写回数据库
+        return blogService.likeBlog(id);
     }
 
+    /**
+     * 查询自己的博客
+     * @param cursor 传入时(第一页传空串)改为游标分页，按发布顺序倒序，返回下一页的游标
+     */
     @GetMapping("/of/me")
-    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
+    public Result queryMyBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                              @RequestParam(value = "cursor", required = false) String cursor) {
+        if (cursor != null){
+            return blogService.queryMyBlogCursor(cursor);
+        }
         // 获取登录用户
         UserDTO user = UserHolder.getUser();
         // 根据用户查询
@@ -60,21 +57,27 @@ public class BlogController {
         return Result.ok(records);
     }
 
+    /**
+     * 关注的人发布的博客，滚动分页
+     * @param max 上一页最小的时间戳，第一页传当前时间戳
+     * @param offset 上一页中时间戳等于max的条数
+     */
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(
+            @RequestParam("lastId") Long max, @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryBlogOfFollow(max, offset);
+    }
+
+    /**
+     * 热门博客
+     * @param cursor 传入时(第一页传空串)改为游标分页，返回下一页的游标
+     */
     @GetMapping("/hot")
-    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current) {
-        // 根据用户查询
-        Page<Blog> page = blogService.query()
-                .orderByDesc("liked")
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 获取当前页数据
-        List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
-        });
-        return Result.ok(records);
+    public Result queryHotBlog(@RequestParam(value = "current", defaultValue = "1") Integer current,
+                               @RequestParam(value = "cursor", required = false) String cursor) {
+        if (cursor != null){
+            return blogService.queryHotBlogCursor(cursor);
+        }
+        return blogService.queryHotBlog(current);
     }
 }
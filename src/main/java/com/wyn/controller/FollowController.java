@@ -1,9 +1,11 @@
 package com.wyn.controller;
 
 
-import org.springframework.web.bind.annotation.RequestMapping;
+import com.wyn.dto.Result;
+import com.wyn.service.IFollowService;
+import org.springframework.web.bind.annotation.*;
 
-import org.springframework.web.bind.annotation.RestController;
+import javax.annotation.Resource;
 
 /**
  * <p>
@@ -14,4 +16,40 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/follow")
 public class FollowController {
 
+    @Resource
+    private IFollowService followService;
+
+    /**
+     * 关注或取关
+     * @param followUserId 被关注的用户id
+     * @param isFollow true为关注，false为取关
+     */
+    @PutMapping("/{id}/{isFollow}")
+    public Result follow(@PathVariable("id") Long followUserId, @PathVariable("isFollow") Boolean isFollow) {
+        return followService.follow(followUserId, isFollow);
+    }
+
+    /**
+     * 判断是否已关注
+     */
+    @GetMapping("/or/not/{id}")
+    public Result isFollow(@PathVariable("id") Long followUserId) {
+        return followService.isFollow(followUserId);
+    }
+
+    /**
+     * 与某个用户共同关注的人
+     */
+    @GetMapping("/common/{id}")
+    public Result followCommons(@PathVariable("id") Long id) {
+        return followService.followCommons(id);
+    }
+
+    /**
+     * 某个用户的粉丝数和关注数
+     */
+    @GetMapping("/count/{id}")
+    public Result followCount(@PathVariable("id") Long id) {
+        return followService.followCount(id);
+    }
 }
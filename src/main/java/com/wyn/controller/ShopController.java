@@ -40,10 +40,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，并加入店铺id布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -62,32 +60,42 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度，与纬度同时传入时按距离排序
+     * @param y 纬度
+     * @param cursor 传入时(第一页传空串)改为游标分页，返回下一页的游标，不按距离排序
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        if (cursor != null && (x == null || y == null)){
+            return shopService.queryShopByTypeCursor(typeId, cursor);
+        }
+        // 根据类型分页查询，店铺详情批量走缓存
+        return shopService.queryShopByType(typeId, current, x, y);
     }
 
     /**
      * 根据商铺名称关键字分页查询商铺信息
      * @param name 商铺名称关键字
      * @param current 页码
+     * @param cursor 传入时(第一页传空串)改为游标分页，返回下一页的游标
      * @return 商铺列表
      */
     @GetMapping("/of/name")
     public Result queryShopByName(
             @RequestParam(value = "name", required = false) String name,
-            @RequestParam(value = "current", defaultValue = "1") Integer current
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
+        if (cursor != null){
+            return shopService.queryShopByNameCursor(name, cursor);
+        }
         // 根据类型分页查询
         Page<Shop> page = shopService.query()
                 .like(StrUtil.isNotBlank(name), "name", name)
@@ -54,9 +54,9 @@ public class UserController {
      * @return 无
      */
     @PostMapping("/logout")
-    public Result logout(){
+    public Result logout(@RequestHeader(value = "authorization", required = false) String token){
         //  实现登出功能
-        return Result.fail("功能未完成");
+        return userService.logout(token);
     }
 
     @GetMapping("/me")
@@ -66,6 +66,31 @@ public class UserController {
         return Result.ok(user);
     }
 
+    /**
+     * 今日签到
+     */
+    @PostMapping("/sign")
+    public Result sign(){
+        return userService.sign();
+    }
+
+    /**
+     * 本月签到天数和连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount(){
+        return userService.signCount();
+    }
+
+    /**
+     * 某月签到的日期
+     * @param month 月份，格式为yyyyMM
+     */
+    @GetMapping("/sign/month")
+    public Result signOfMonth(@RequestParam("month") String month){
+        return userService.signOfMonth(month);
+    }
+
     @GetMapping("/info/{id}")
     public Result info(@PathVariable("id") Long userId){
         // 查询详情
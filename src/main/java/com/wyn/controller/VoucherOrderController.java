@@ -3,12 +3,14 @@ package com.wyn.controller;
 
 import com.wyn.dto.Result;
 import com.wyn.service.IVoucherOrderService;
+import com.wyn.utils.SeckillAdmissionController;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * <p>
@@ -19,12 +21,31 @@ import javax.annotation.Resource;
 @RequestMapping("/voucher-order")
 public class VoucherOrderController {
 
+    /*被准入控制拒绝时，建议客户端重试的间隔(秒)*/
+    private static final String RETRY_AFTER_SECONDS = "1";
+
     @Resource
     private IVoucherOrderService voucherOrderService;
 
-    @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    @Resource
+    private SeckillAdmissionController admissionController;
 
-        return voucherOrderService.seckillVoucher(voucherId);
+    @PostMapping("seckill/{id}")
+    public Result seckillVoucher(@PathVariable("id") Long voucherId, HttpServletResponse response) {
+        // 准入控制，同时进行中的请求过多时快速失败
+        SeckillAdmissionController.Permit permit = admissionController.tryAcquire(voucherId);
+        if (permit == null) {
+            response.setStatus(429);
+            response.setHeader("Retry-After", RETRY_AFTER_SECONDS);
+            return Result.fail("当前抢购人数过多，请稍后重试");
+        }
+        boolean failed = true;
+        try {
+            Result result = voucherOrderService.seckillVoucher(voucherId);
+            failed = false;
+            return result;
+        } finally {
+            permit.release(failed);
+        }
     }
 }
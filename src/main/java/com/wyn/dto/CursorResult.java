@@ -0,0 +1,18 @@
+package com.wyn.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/*
+* 游标分页的结果，next为下一页的游标，没有下一页时为null
+* */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CursorResult {
+    private List<?> list;
+    private String next;
+}
@@ -0,0 +1,46 @@
+package com.wyn.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存变更表，由被缓存表上的触发器写入
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_change")
+public class CacheChange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 发生变更的表
+     */
+    private String tableName;
+
+    /**
+     * 发生变更的行的主键
+     */
+    private Long rowId;
+
+    /**
+     * 变更时间
+     */
+    private LocalDateTime createTime;
+}
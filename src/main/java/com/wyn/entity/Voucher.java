@@ -75,6 +75,12 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时秒杀库存拆分到多个Redis key上
+     */
+    @TableField(exist = false)
+    private Integer stockShards;
+
     /**
      * 生效时间
      */
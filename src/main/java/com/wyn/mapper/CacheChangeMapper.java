@@ -0,0 +1,13 @@
+package com.wyn.mapper;
+
+import com.wyn.entity.CacheChange;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ */
+public interface CacheChangeMapper extends BaseMapper<CacheChange> {
+
+}
@@ -0,0 +1,22 @@
+package com.wyn.mapper;
+
+import com.wyn.entity.Sign;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ */
+public interface SignMapper extends BaseMapper<Sign> {
+
+    /**
+     * 多行写入签到记录，同一用户同一月份已存在时覆盖bits
+     * @param signs 签到记录，不能为空
+     * @return 影响的行数
+     */
+    int upsertBatch(@Param("signs") List<Sign> signs);
+}
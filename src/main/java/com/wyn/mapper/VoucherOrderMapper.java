@@ -2,6 +2,9 @@ package com.wyn.mapper;
 
 import com.wyn.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -10,4 +13,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单，一批订单只执行一条insert语句
+     * @param orders 订单列表，不能为空
+     * @return 插入的行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -1,5 +1,6 @@
 package com.wyn.service;
 
+import com.wyn.dto.Result;
 import com.wyn.entity.Blog;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -10,4 +11,21 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IBlogService extends IService<Blog> {
 
+    Result queryHotBlog(Integer current);
+
+    /*游标分页查询热门博客，cursor为空时查询第一页*/
+    Result queryHotBlogCursor(String cursor);
+
+    /*游标分页查询自己的博客*/
+    Result queryMyBlogCursor(String cursor);
+
+    Result likeBlog(Long id);
+
+    Result saveBlog(Blog blog);
+
+    Result queryBlogOfFollow(Long max, Integer offset);
+
+    /*把数据库中的博客点赞数加载到热度排行中，返回博客数量*/
+    long loadHotBlogs();
+
 }
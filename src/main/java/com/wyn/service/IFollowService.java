@@ -1,8 +1,12 @@
 package com.wyn.service;
 
+import com.wyn.dto.Result;
 import com.wyn.entity.Follow;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+import java.util.function.Consumer;
+
 /**
  * <p>
  *  服务类
@@ -10,4 +14,21 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IFollowService extends IService<Follow> {
 
+    Result follow(Long followUserId, Boolean isFollow);
+
+    Result isFollow(Long followUserId);
+
+    /*与用户id共同关注的人*/
+    Result followCommons(Long id);
+
+    /*粉丝数和关注数*/
+    Result followCount(Long id);
+
+    long countFollowers(Long userId);
+
+    /*确认Redis中该用户的关注集合follows:{userId}已完整加载，未加载时从数据库加载*/
+    void ensureFollowsLoaded(Long userId);
+
+    /*按id分页读取某个用户的粉丝id，每页回调一次*/
+    void forEachFollowerPage(Long userId, int pageSize, Consumer<List<Long>> consumer);
 }
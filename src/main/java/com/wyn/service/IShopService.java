@@ -14,4 +14,17 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    /*游标分页查询某类型的店铺，cursor为空时查询第一页*/
+    Result queryShopByTypeCursor(Integer typeId, String cursor);
+
+    /*游标分页按名称关键字查询店铺*/
+    Result queryShopByNameCursor(String name, String cursor);
+
+    /*把所有店铺的坐标加载到按类型划分的GEO集合中，返回店铺数量*/
+    long loadShopGeo();
 }
@@ -3,9 +3,12 @@ package com.wyn.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.wyn.dto.LoginFormDTO;
 import com.wyn.dto.Result;
+import com.wyn.dto.UserDTO;
 import com.wyn.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -17,4 +20,17 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    Result logout(String token);
+
+    Result sign();
+
+    /*本月签到天数和连续签到天数*/
+    Result signCount();
+
+    /*某月签到的日期，month格式为yyyyMM*/
+    Result signOfMonth(String month);
+
+    /*批量查询用户的公开信息，优先走缓存，返回 id -> UserDTO*/
+    Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids);
 }
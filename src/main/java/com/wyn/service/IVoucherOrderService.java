@@ -4,6 +4,8 @@ import com.wyn.dto.Result;
 import com.wyn.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -14,4 +16,6 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     Result createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
 }
@@ -1,9 +1,12 @@
 package com.wyn.service;
 
 import com.wyn.dto.Result;
+import com.wyn.entity.SeckillVoucher;
 import com.wyn.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -14,4 +17,7 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /*把秒杀券的库存和秒杀时间预热到Redis中，已存在的库存不覆盖*/
+    void warmUpSeckillVouchers(List<SeckillVoucher> seckillVouchers);
 }
@@ -1,17 +1,454 @@
 package com.wyn.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.wyn.dto.CursorResult;
+import com.wyn.dto.Result;
+import com.wyn.dto.ScrollResult;
+import com.wyn.dto.UserDTO;
 import com.wyn.entity.Blog;
 import com.wyn.mapper.BlogMapper;
 import com.wyn.service.IBlogService;
+import com.wyn.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.wyn.service.IUserService;
+import com.wyn.utils.PageCursor;
+import com.wyn.utils.RedisLease;
+import com.wyn.utils.SystemConstants;
+import com.wyn.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.wyn.utils.RedisConstants.*;
+
 /**
  * <p>
  *  服务实现类
  * </p>
  */
+
+/*
+* 点赞记录在Redis中：blog:liked:{id}为点赞用户集合，用于去重和判断isLike；blog:hot为按点赞数排序的热度排行
+* 点赞只修改Redis，并把博客id加入待写回集合；后台定时批量取出，把排行中的最新点赞数写回数据库
+* 同一博客在一个写回周期内的多次点赞只产生一次UPDATE
+* 关注的人发布博客时推送到粉丝的收件箱 feed:{userId}；粉丝数超过push-threshold的用户只写入自己的发件箱，粉丝读取时再拉取合并
+* */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
+    private static final DefaultRedisScript<Long> LIKE_SCRIPT;
+    static {
+        LIKE_SCRIPT = new DefaultRedisScript<>();
+        LIKE_SCRIPT.setLocation(new ClassPathResource("like.lua"));
+        LIKE_SCRIPT.setResultType(Long.class);
+    }
+
+    private static final DefaultRedisScript<List> LIKE_FLUSH_SCRIPT;
+    static {
+        LIKE_FLUSH_SCRIPT = new DefaultRedisScript<>();
+        LIKE_FLUSH_SCRIPT.setLocation(new ClassPathResource("like_flush.lua"));
+        LIKE_FLUSH_SCRIPT.setResultType(List.class);
+    }
+
+    /*只添加排行中还没有的博客，不覆盖Redis中尚未写回的点赞数*/
+    private static final DefaultRedisScript<Long> HOT_SEED_SCRIPT = new DefaultRedisScript<>(
+            "return redis.call('zadd', KEYS[1], 'NX', unpack(ARGV))", Long.class);
+
+    /*写回租约的有效期(秒)*/
+    private static final long FLUSH_LEASE_TTL = 30;
+
+    /*初始化排行时每批读取的数量*/
+    private static final int HOT_LOAD_BATCH = 1000;
+
+    /*推送时每批读取的粉丝数，每批一次pipeline*/
+    private static final int FEED_PUSH_BATCH = 1000;
+
+    @Resource
+    private IUserService userService;
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /*点赞数写回数据库的间隔*/
+    @Value("${hmdp.blog.like-flush-ms:1000}")
+    private long likeFlushMs;
+
+    /*每次最多写回的博客数*/
+    @Value("${hmdp.blog.like-flush-batch:500}")
+    private int likeFlushBatch;
+
+    /*粉丝数超过该值时不再推送，改为粉丝读取时拉取*/
+    @Value("${hmdp.feed.push-threshold:5000}")
+    private long feedPushThreshold;
+
+    /*收件箱、发件箱最多保留的博客数*/
+    @Value("${hmdp.feed.max-size:1000}")
+    private long feedMaxSize;
+
+    private RedisLease flushLease;
+
+    private final ScheduledExecutorService likeFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        flushLease = new RedisLease(stringRedisTemplate);
+        likeFlushExecutor.scheduleWithFixedDelay(this::flushLiked, likeFlushMs, likeFlushMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        likeFlushExecutor.shutdownNow();
+        //停机前把已取出的点赞数写完
+        flushLiked();
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        //1. 获取登录用户，保存博客
+        blog.setUserId(UserHolder.getUser().getId());
+        if (!save(blog)){
+            return Result.fail("新增笔记失败！");
+        }
+        //2. 加入热度排行
+        stringRedisTemplate.opsForZSet().add(BLOG_HOT_KEY, blog.getId().toString(), 0);
+        //3. 推送给粉丝，推送失败不影响发布
+        try {
+            pushToFollowers(blog.getUserId(), blog.getId().toString(), System.currentTimeMillis());
+        } catch (Exception e) {
+            log.error("博客推送失败，blogId=" + blog.getId(), e);
+        }
+        return Result.ok(blog.getId());
+    }
+
+    /*
+    * 普通用户：分页读取粉丝，每页一次pipeline执行 ZADD feed:{粉丝id} 时间戳 blogId，并裁剪到feedMaxSize
+    * 大V：只写入 feed:outbox:{userId}，并登记到 feed:big；一旦登记不再推送，避免已推送和未推送的博客混在一起
+    * */
+    private void pushToFollowers(Long authorId, String blogId, long timestamp){
+        String author = authorId.toString();
+        boolean big = Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FEED_BIG_USERS_KEY, author));
+        if (!big && followService.countFollowers(authorId) > feedPushThreshold){
+            stringRedisTemplate.opsForSet().add(FEED_BIG_USERS_KEY, author);
+            big = true;
+        }
+        if (big){
+            stringRedisTemplate.opsForZSet().add(FEED_OUTBOX_KEY + author, blogId, timestamp);
+            stringRedisTemplate.opsForZSet().removeRange(FEED_OUTBOX_KEY + author, 0, -feedMaxSize - 1);
+            return;
+        }
+        followService.forEachFollowerPage(authorId, FEED_PUSH_BATCH, followers ->
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Long follower : followers) {
+                        stringConnection.zAdd(FEED_KEY + follower, timestamp, blogId);
+                        stringConnection.zRemRange(FEED_KEY + follower, 0, -feedMaxSize - 1);
+                    }
+                    return null;
+                }));
+    }
+
+    /*
+    * 滚动分页：max为上一页最小的时间戳，offset为上一页中与max相同的条数
+    * 收件箱和关注的大V发件箱各取offset + 页大小条，合并后按时间戳倒序(相同时按博客id字符串倒序，与Redis一致)再截取
+    * */
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        //1. 获取登录用户
+        Long userId = UserHolder.getUser().getId();
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        //2. 读取来源：自己的收件箱 + 关注了的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        //2.1 SINTER follows:{userId} feed:big，Redis从较小的集合开始遍历
+        followService.ensureFollowsLoaded(userId);
+        Set<String> followedBig = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FEED_BIG_USERS_KEY);
+        if (followedBig != null){
+            followedBig.forEach(id -> keys.add(FEED_OUTBOX_KEY + id));
+        }
+        //3. ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT 0 offset+size，按博客id去重
+        Map<String, Double> scores = new HashMap<>();
+        for (String key : keys) {
+            Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                    .reverseRangeByScoreWithScores(key, 0, max, 0, offset + size);
+            if (tuples != null){
+                tuples.forEach(tuple -> scores.put(tuple.getValue(), tuple.getScore()));
+            }
+        }
+        List<Map.Entry<String, Double>> entries = new ArrayList<>(scores.entrySet());
+        entries.sort(Map.Entry.<String, Double>comparingByValue().reversed()
+                .thenComparing(Map.Entry.<String, Double>comparingByKey().reversed()));
+        //4. 跳过上一页已返回的、时间戳等于max的博客，截取一页
+        int skip = 0;
+        while (skip < offset && skip < entries.size() && entries.get(skip).getValue() == max.doubleValue()){
+            skip++;
+        }
+        List<Map.Entry<String, Double>> page = entries.subList(skip, Math.min(entries.size(), skip + size));
+        ScrollResult result = new ScrollResult();
+        if (page.isEmpty()){
+            result.setList(Collections.emptyList());
+            result.setMinTime(max);
+            result.setOffset(offset);
+            return Result.ok(result);
+        }
+        //5. 计算下一页的max和offset
+        long minTime = page.get(page.size() - 1).getValue().longValue();
+        int nextOffset = 0;
+        for (Map.Entry<String, Double> entry : page) {
+            if (entry.getValue().longValue() == minTime){
+                nextOffset++;
+            }
+        }
+        if (minTime == max){
+            nextOffset += offset;
+        }
+        //6. 按顺序查询博客，填充作者信息和点赞状态
+        List<Long> ids = page.stream().map(entry -> Long.valueOf(entry.getKey())).collect(Collectors.toList());
+        Map<Long, Blog> blogs = listByIds(ids).stream()
+                .collect(Collectors.toMap(Blog::getId, Function.identity()));
+        List<Blog> records = ids.stream().map(blogs::get).filter(Objects::nonNull).collect(Collectors.toList());
+        fillBlogs(records);
+        result.setList(records);
+        result.setMinTime(minTime);
+        result.setOffset(nextOffset);
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result likeBlog(Long id) {
+        //1. 获取登录用户
+        String userId = UserHolder.getUser().getId().toString();
+        List<String> keys = Arrays.asList(BLOG_LIKED_KEY + id, BLOG_HOT_KEY, BLOG_HOT_DIRTY_KEY);
+        //2. 执行lua脚本，切换点赞状态
+        Long delta = stringRedisTemplate.execute(LIKE_SCRIPT, keys, userId, id.toString());
+        if (delta != null && delta == 0){
+            //3. 排行中还没有该博客，带上数据库中的点赞数重试
+            Blog blog = query().select("id", "liked").eq("id", id).one();
+            if (blog == null){
+                return Result.fail("博客不存在！");
+            }
+            delta = stringRedisTemplate.execute(LIKE_SCRIPT, keys, userId, id.toString(),
+                    String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked()));
+        }
+        return Result.ok(delta != null && delta > 0);
+    }
+
+    @Override
+    public Result queryHotBlog(Integer current) {
+        //1. 排行尚未完整加载时按数据库分页
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(BLOG_HOT_LOADED_KEY))){
+            List<Blog> records = query()
+                    .orderByDesc("liked")
+                    .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE))
+                    .getRecords();
+            fillBlogs(records);
+            return Result.ok(records);
+        }
+        //2. 从排行中取当前页的博客id和点赞数 ZREVRANGE blog:hot start end WITHSCORES
+        long start = (long) (current - 1) * SystemConstants.MAX_PAGE_SIZE;
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeWithScores(BLOG_HOT_KEY, start, start + SystemConstants.MAX_PAGE_SIZE - 1);
+        if (tuples == null || tuples.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        //3. 按id批量查询博客，并按排行顺序返回
+        List<Blog> records = rankedBlogs(tuples);
+        //4. 填充作者信息和点赞状态
+        fillBlogs(records);
+        return Result.ok(records);
+    }
+
+    /*
+    * 游标分页，游标为上一页最后一条的 (点赞数, id)，不执行COUNT
+    * WHERE (liked, id) < (?, ?) ORDER BY liked DESC, id DESC，走idx_liked(liked, id)，翻到任何位置都只扫描一页
+    * 不走排行ZSET：同分的成员在ZSET中按字符串排序，无法按 (点赞数, id) 续读，只能按名次偏移；
+    * 数据库中的点赞数比排行晚一个刷新周期(hmdp.blog.like-flush-ms)
+    * */
+    @Override
+    public Result queryHotBlogCursor(String cursor) {
+        //1. 解析游标
+        long[] last = PageCursor.decode(cursor, 2);
+        if (last == null){
+            return Result.fail("分页游标无效！");
+        }
+        //2. 多查一条，用于判断是否还有下一页
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<Blog> records = query()
+                .apply(last.length > 0, "(liked, id) < ({0}, {1})", last.length > 0 ? last[0] : 0, last.length > 0 ? last[1] : 0)
+                .orderByDesc("liked", "id")
+                .last("limit " + (size + 1))
+                .list();
+        //3. 生成下一页的游标
+        String next = null;
+        if (records.size() > size){
+            records = new ArrayList<>(records.subList(0, size));
+            Blog tail = records.get(size - 1);
+            next = PageCursor.encode(tail.getLiked() == null ? 0 : tail.getLiked(), tail.getId());
+        }
+        fillBlogs(records);
+        return Result.ok(new CursorResult(records, next));
+    }
+
+    /*游标分页查询自己的博客，WHERE user_id = ? AND id < ? ORDER BY id DESC，走idx_user_id(user_id, id)*/
+    @Override
+    public Result queryMyBlogCursor(String cursor) {
+        //1. 解析游标
+        long[] last = PageCursor.decode(cursor, 1);
+        if (last == null){
+            return Result.fail("分页游标无效！");
+        }
+        //2. 多查一条，用于判断是否还有下一页
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<Blog> records = query()
+                .eq("user_id", UserHolder.getUser().getId())
+                .lt(last.length > 0, "id", last.length > 0 ? last[0] : 0)
+                .orderByDesc("id")
+                .last("limit " + (size + 1))
+                .list();
+        //3. 生成下一页的游标
+        String next = null;
+        if (records.size() > size){
+            records = new ArrayList<>(records.subList(0, size));
+            next = PageCursor.encode(records.get(size - 1).getId());
+        }
+        return Result.ok(new CursorResult(records, next));
+    }
+
+    /*按排行中的顺序批量查询博客，点赞数以排行为准*/
+    private List<Blog> rankedBlogs(Set<ZSetOperations.TypedTuple<String>> tuples){
+        Map<Long, Integer> likedById = new LinkedHashMap<>(tuples.size() * 2);
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            likedById.put(Long.valueOf(tuple.getValue()),
+                    tuple.getScore() == null ? 0 : tuple.getScore().intValue());
+        }
+        if (likedById.isEmpty()){
+            return new ArrayList<>();
+        }
+        Map<Long, Blog> blogs = listByIds(likedById.keySet()).stream()
+                .collect(Collectors.toMap(Blog::getId, Function.identity()));
+        List<Blog> records = new ArrayList<>(likedById.size());
+        likedById.forEach((id, liked) -> {
+            Blog blog = blogs.get(id);
+            if (blog != null){
+                records.add(blog.setLiked(liked));
+            }
+        });
+        return records;
+    }
+
+    /*按id分页读取tb_blog，把还不在排行中的博客加入排行*/
+    @Override
+    public long loadHotBlogs() {
+        long lastId = 0;
+        long count = 0;
+        while (true){
+            List<Blog> page = list(new QueryWrapper<Blog>().select("id", "liked")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + HOT_LOAD_BATCH));
+            if (!page.isEmpty()){
+                String[] args = new String[page.size() * 2];
+                for (int i = 0; i < page.size(); i++) {
+                    Blog blog = page.get(i);
+                    args[2 * i] = String.valueOf(blog.getLiked() == null ? 0 : blog.getLiked());
+                    args[2 * i + 1] = blog.getId().toString();
+                }
+                stringRedisTemplate.execute(HOT_SEED_SCRIPT, Collections.singletonList(BLOG_HOT_KEY), (Object[]) args);
+            }
+            count += page.size();
+            if (page.size() < HOT_LOAD_BATCH){
+                stringRedisTemplate.opsForValue().set(BLOG_HOT_LOADED_KEY, String.valueOf(count));
+                return count;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /*批量填充作者信息，并用一次pipeline查询当前用户是否点赞过*/
+    private void fillBlogs(List<Blog> records){
+        if (records.isEmpty()){
+            return;
+        }
+        //1. 批量查询作者信息，一次缓存MGET，未命中的一次IN查询
+        Map<Long, UserDTO> users = userService.queryUserDTOByIds(
+                records.stream().map(Blog::getUserId).collect(Collectors.toList()));
+        records.forEach(blog -> {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null){
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        });
+        //2. 未登录时都视为未点赞
+        UserDTO user = UserHolder.getUser();
+        if (user == null){
+            records.forEach(blog -> blog.setIsLike(false));
+            return;
+        }
+        //3. SISMEMBER blog:liked:{id} userId
+        String userId = user.getId().toString();
+        List<Object> liked = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Blog blog : records) {
+                stringConnection.sIsMember(BLOG_LIKED_KEY + blog.getId(), userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < records.size(); i++) {
+            records.get(i).setIsLike(Boolean.TRUE.equals(liked.get(i)));
+        }
+    }
+
+    /*取出一批点赞数有变化的博客，批量写回数据库；多个节点中只有持有租约的节点写回，避免旧值覆盖新值*/
+    private void flushLiked(){
+        try {
+            if (!flushLease.hold(BLOG_LIKED_FLUSH_LOCK_KEY, FLUSH_LEASE_TTL, TimeUnit.SECONDS)){
+                return;
+            }
+            while (true){
+                //1. 原子地取出待写回的博客id及当前点赞数
+                List<?> values = stringRedisTemplate.execute(LIKE_FLUSH_SCRIPT,
+                        Arrays.asList(BLOG_HOT_DIRTY_KEY, BLOG_HOT_KEY), String.valueOf(likeFlushBatch));
+                if (values == null || values.isEmpty()){
+                    return;
+                }
+                List<Blog> blogs = new ArrayList<>(values.size() / 2);
+                for (int i = 0; i + 1 < values.size(); i += 2) {
+                    blogs.add(new Blog().setId(Long.valueOf(values.get(i).toString()))
+                            .setLiked((int) Double.parseDouble(values.get(i + 1).toString())));
+                }
+                //2. 批量更新，失败时放回待写回集合，下次重试
+                try {
+                    updateBatchById(blogs);
+                } catch (Exception e) {
+                    stringRedisTemplate.opsForSet().add(BLOG_HOT_DIRTY_KEY,
+                            blogs.stream().map(blog -> blog.getId().toString()).toArray(String[]::new));
+                    throw e;
+                }
+                if (values.size() / 2 < likeFlushBatch){
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("点赞数写回失败", e);
+        }
+    }
 }
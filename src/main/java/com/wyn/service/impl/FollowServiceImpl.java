@@ -1,17 +1,217 @@
 package com.wyn.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wyn.dto.Result;
+import com.wyn.dto.UserDTO;
 import com.wyn.entity.Follow;
 import com.wyn.mapper.FollowMapper;
 import com.wyn.service.IFollowService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.wyn.service.IUserService;
+import com.wyn.utils.UserHolder;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.wyn.utils.RedisConstants.FOLLOWERS_KEY;
+import static com.wyn.utils.RedisConstants.FOLLOWS_KEY;
+import static com.wyn.utils.RedisConstants.FOLLOW_LOADED_KEY;
+import static com.wyn.utils.RedisConstants.FOLLOW_LOADED_SETS_KEY;
+
 /**
  * <p>
  *  服务实现类
  * </p>
  */
+
+/*
+* 关注关系以tb_follow为准，写入成功后同步到Redis：follows:{userId}为关注的人，followers:{userId}为粉丝
+* 共同关注用SINTER，关注数、粉丝数用SCARD；两边不一致时由FollowReconciler定期修复
+* FollowReconciler首次完整执行前，Redis中的集合可能不完整(只有增量同步写入的成员)，
+* 查询前确认用到的集合已完整加载：FollowReconciler已完整执行过，或该集合已登记在FOLLOW_LOADED_SETS_KEY中；
+* 否则从数据库读取该用户的完整集合写入Redis并登记，之后的查询都直接读Redis
+* */
 @Service
 public class FollowServiceImpl extends ServiceImpl<FollowMapper, Follow> implements IFollowService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IUserService userService;
+
+    /*集合已加载后不会再回到未加载状态，缓存在本地，避免每次查询都读取标记*/
+    private volatile boolean followSetsLoaded;
+
+    /*本节点确认过已完整加载的集合key*/
+    private final Cache<String, Boolean> loadedSets = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(Duration.ofMinutes(1))
+            .build();
+
+    @Override
+    public Result follow(Long followUserId, Boolean isFollow) {
+        //1. 获取登录用户
+        Long userId = UserHolder.getUser().getId();
+        if (userId.equals(followUserId)){
+            return Result.fail("不能关注自己！");
+        }
+        //2. 关注，新增数据；重复关注由唯一索引(user_id, follow_user_id)拒绝，不再先查询
+        if (Boolean.TRUE.equals(isFollow)){
+            try {
+                save(new Follow().setUserId(userId).setFollowUserId(followUserId));
+            } catch (DuplicateKeyException e) {
+                //已经关注过，视为成功
+            }
+            //3. 同步到Redis，一次pipeline写入双方的集合；SADD幂等，重复关注时也顺带修复集合
+            syncFollow(userId, followUserId, true);
+            return Result.ok();
+        }
+        //4. 取关，删除数据，成功后同步到Redis
+        if (remove(new QueryWrapper<Follow>().eq("user_id", userId).eq("follow_user_id", followUserId))){
+            syncFollow(userId, followUserId, false);
+        }
+        return Result.ok();
+    }
+
+    private void syncFollow(Long userId, Long followUserId, boolean isFollow){
+        String user = userId.toString();
+        String followUser = followUserId.toString();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            if (isFollow){
+                stringConnection.sAdd(FOLLOWS_KEY + user, followUser);
+                stringConnection.sAdd(FOLLOWERS_KEY + followUser, user);
+            } else {
+                stringConnection.sRem(FOLLOWS_KEY + user, followUser);
+                stringConnection.sRem(FOLLOWERS_KEY + followUser, user);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Result isFollow(Long followUserId) {
+        Long userId = UserHolder.getUser().getId();
+        Integer count = query().eq("user_id", userId).eq("follow_user_id", followUserId).count();
+        return Result.ok(count > 0);
+    }
+
+    /*SINTER follows:{当前用户} follows:{id}，再批量查询用户信息*/
+    @Override
+    public Result followCommons(Long id) {
+        //1. 获取登录用户
+        Long userId = UserHolder.getUser().getId();
+        //2. 求交集
+        ensureFollowsLoaded(userId);
+        ensureFollowsLoaded(id);
+        Set<String> intersect = stringRedisTemplate.opsForSet().intersect(FOLLOWS_KEY + userId, FOLLOWS_KEY + id);
+        if (intersect == null || intersect.isEmpty()){
+            return Result.ok(Collections.emptyList());
+        }
+        //3. 批量查询用户，一次缓存MGET，未命中的一次IN查询
+        List<Long> ids = intersect.stream().map(Long::valueOf).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOByIds(ids);
+        return Result.ok(new ArrayList<>(users.values()));
+    }
+
+    /*SCARD followers:{id}、SCARD follows:{id}，一次pipeline*/
+    @Override
+    public Result followCount(Long id) {
+        Map<String, Object> result = new HashMap<>(4);
+        ensureFollowersLoaded(id);
+        ensureFollowsLoaded(id);
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.sCard(FOLLOWERS_KEY + id);
+            stringConnection.sCard(FOLLOWS_KEY + id);
+            return null;
+        });
+        result.put("followers", counts.get(0));
+        result.put("follows", counts.get(1));
+        return Result.ok(result);
+    }
+
+    @Override
+    public long countFollowers(Long userId) {
+        ensureFollowersLoaded(userId);
+        Long count = stringRedisTemplate.opsForSet().size(FOLLOWERS_KEY + userId);
+        return count == null ? 0 : count;
+    }
+
+    @Override
+    public void ensureFollowsLoaded(Long userId) {
+        ensureLoaded(FOLLOWS_KEY, "user_id", "follow_user_id", Follow::getFollowUserId, userId);
+    }
+
+    private void ensureFollowersLoaded(Long userId) {
+        ensureLoaded(FOLLOWERS_KEY, "follow_user_id", "user_id", Follow::getUserId, userId);
+    }
+
+    /*
+    * 确认ownerId的集合已完整加载，未加载时从数据库读取完整的成员，与增量同步已写入的成员合并后登记
+    * 读取数据库与写入Redis之间发生的取关可能被写回，留给FollowReconciler修复
+    * */
+    private void ensureLoaded(String keyPrefix, String ownerColumn, String memberColumn,
+                              Function<Follow, Long> member, Long ownerId) {
+        if (isFollowSetsLoaded()){
+            return;
+        }
+        String key = keyPrefix + ownerId;
+        if (loadedSets.getIfPresent(key) != null){
+            return;
+        }
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForSet().isMember(FOLLOW_LOADED_SETS_KEY, key))){
+            String[] members = list(new QueryWrapper<Follow>().select(memberColumn).eq(ownerColumn, ownerId))
+                    .stream().map(follow -> member.apply(follow).toString()).toArray(String[]::new);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                if (members.length > 0){
+                    stringConnection.sAdd(key, members);
+                }
+                stringConnection.sAdd(FOLLOW_LOADED_SETS_KEY, key);
+                return null;
+            });
+        }
+        loadedSets.put(key, Boolean.TRUE);
+    }
+
+    /*FollowReconciler是否已完整执行过，之后所有集合都是完整的*/
+    private boolean isFollowSetsLoaded() {
+        if (!followSetsLoaded){
+            followSetsLoaded = Boolean.TRUE.equals(stringRedisTemplate.hasKey(FOLLOW_LOADED_KEY));
+        }
+        return followSetsLoaded;
+    }
+
+    /*按粉丝id keyset分页，只查询user_id，走idx_follow_user(follow_user_id, user_id)索引*/
+    @Override
+    public void forEachFollowerPage(Long userId, int pageSize, Consumer<List<Long>> consumer) {
+        long lastUserId = 0;
+        while (true){
+            List<Long> page = list(new QueryWrapper<Follow>().select("user_id")
+                    .eq("follow_user_id", userId).gt("user_id", lastUserId)
+                    .orderByAsc("user_id").last("limit " + pageSize))
+                    .stream().map(Follow::getUserId).collect(Collectors.toList());
+            if (!page.isEmpty()){
+                consumer.accept(page);
+            }
+            if (page.size() < pageSize){
+                return;
+            }
+            lastUserId = page.get(page.size() - 1);
+        }
+    }
+
 }
@@ -1,25 +1,47 @@
 package com.wyn.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.wyn.dto.CursorResult;
 import com.wyn.dto.Result;
 import com.wyn.entity.Shop;
 import com.wyn.mapper.ShopMapper;
 import com.wyn.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.wyn.utils.BloomFilter;
 import com.wyn.utils.CaCheClient;
-import com.wyn.utils.RedisData;
+import com.wyn.utils.PageCursor;
+import com.wyn.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.wyn.utils.RedisConstants.*;
 
@@ -28,6 +50,7 @@ import static com.wyn.utils.RedisConstants.*;
  *  服务实现类
  * </p>
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -38,6 +61,248 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CaCheClient caCheClient;
 
+    /*店铺本地一级缓存的容量，为0时不启用*/
+    @Value("${hmdp.cache.local.shop-maximum-size:0}")
+    private long localCacheMaximumSize;
+
+    /*店铺本地一级缓存的存活时间(秒)*/
+    @Value("${hmdp.cache.local.shop-ttl-seconds:30}")
+    private long localCacheTtlSeconds;
+
+    /*店铺id布隆过滤器的预计容量，为0时不启用*/
+    @Value("${hmdp.cache.bloom.shop-expected-insertions:0}")
+    private long bloomExpectedInsertions;
+
+    /*店铺id布隆过滤器的目标误判率*/
+    @Value("${hmdp.cache.bloom.shop-fpp:0.01}")
+    private double bloomFpp;
+
+    /*店铺id布隆过滤器的重建间隔(分钟)，节点漏收新增广播或后台直接插入时，新店铺最多被误判为不存在这么久*/
+    @Value("${hmdp.cache.bloom.shop-rebuild-minutes:60}")
+    private long bloomRebuildMinutes;
+
+    /*按距离查询店铺时的搜索半径(米)，超出的店铺不返回，半径越大GEORADIUS扫描的成员越多*/
+    @Value("${hmdp.shop.nearby-radius-meters:5000}")
+    private double nearbyRadiusMeters;
+
+    /*启动时扫描店铺id的每批数量*/
+    private static final int BLOOM_SCAN_BATCH = 1000;
+
+    private final ScheduledExecutorService bloomRebuildExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        if (localCacheMaximumSize > 0){
+            caCheClient.enableLocalCache(CACHE_SHOP_KEY, localCacheMaximumSize, Duration.ofSeconds(localCacheTtlSeconds));
+        }
+        if (bloomExpectedInsertions > 0){
+            //启动后立即异步构建，之后定期重建，补上漏掉的新店铺
+            bloomRebuildExecutor.scheduleWithFixedDelay(this::buildShopBloomFilter,
+                    0, bloomRebuildMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        bloomRebuildExecutor.shutdownNow();
+    }
+
+    /*
+    * 按id分批扫描tb_shop，把所有店铺id加入新的布隆过滤器，完成后替换旧的
+    * 先注册再扫描，扫描期间新增的店铺同时加入新旧过滤器；首次构建完成前不启用过滤
+    * */
+    private void buildShopBloomFilter(){
+        BloomFilter shopBloomFilter = new BloomFilter(bloomExpectedInsertions, bloomFpp);
+        caCheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+        try {
+            long lastId = 0;
+            int count = 0;
+            while (true){
+                List<Object> ids = listObjs(new QueryWrapper<Shop>().select("id")
+                        .gt("id", lastId).orderByAsc("id").last("limit " + BLOOM_SCAN_BATCH));
+                for (Object id : ids) {
+                    shopBloomFilter.put(id.toString());
+                }
+                count += ids.size();
+                if (ids.size() < BLOOM_SCAN_BATCH){
+                    break;
+                }
+                lastId = Long.parseLong(ids.get(ids.size() - 1).toString());
+            }
+            caCheClient.enableBloomFilter(CACHE_SHOP_KEY);
+            log.info("店铺布隆过滤器构建完成，店铺数量={}", count);
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器构建失败，继续使用上一次构建的过滤器", e);
+        }
+    }
+
+    @Override
+    public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
+        if (current == null || current < 1){
+            return Result.fail("页码必须大于0！");
+        }
+        //0. 传入坐标时按距离排序
+        if (x != null && y != null){
+            return queryShopByTypeNearby(typeId, current, x, y);
+        }
+        //1. 分页只查询店铺id
+        Page<Shop> page = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+        List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+        //2. 批量从缓存中查询店铺，未命中的一次IN查询数据库
+        Map<Long, Shop> shops = caCheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //3. 返回数据
+        return Result.ok(new ArrayList<>(shops.values()));
+    }
+
+    /*游标分页：WHERE type_id = ? AND id > ? ORDER BY id，走idx_type_id(type_id, id)，不执行COUNT*/
+    @Override
+    public Result queryShopByTypeCursor(Integer typeId, String cursor) {
+        //1. 解析游标
+        long[] last = PageCursor.decode(cursor, 1);
+        if (last == null){
+            return Result.fail("分页游标无效！");
+        }
+        //2. 只查询店铺id，多查一条用于判断是否还有下一页
+        int size = SystemConstants.DEFAULT_PAGE_SIZE;
+        List<Long> ids = query()
+                .select("id")
+                .eq("type_id", typeId)
+                .gt(last.length > 0, "id", last.length > 0 ? last[0] : 0)
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list().stream().map(Shop::getId).collect(Collectors.toList());
+        String next = null;
+        if (ids.size() > size){
+            ids = ids.subList(0, size);
+            next = PageCursor.encode(ids.get(size - 1));
+        }
+        //3. 批量从缓存中查询店铺，未命中的一次IN查询数据库
+        Map<Long, Shop> shops = caCheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        return Result.ok(new CursorResult(new ArrayList<>(shops.values()), next));
+    }
+
+    /*游标分页：WHERE name LIKE ? AND id > ? ORDER BY id，按主键顺序扫描，不执行COUNT*/
+    @Override
+    public Result queryShopByNameCursor(String name, String cursor) {
+        //1. 解析游标
+        long[] last = PageCursor.decode(cursor, 1);
+        if (last == null){
+            return Result.fail("分页游标无效！");
+        }
+        //2. 多查一条，用于判断是否还有下一页
+        int size = SystemConstants.MAX_PAGE_SIZE;
+        List<Shop> shops = query()
+                .like(StrUtil.isNotBlank(name), "name", name)
+                .gt(last.length > 0, "id", last.length > 0 ? last[0] : 0)
+                .orderByAsc("id")
+                .last("limit " + (size + 1))
+                .list();
+        String next = null;
+        if (shops.size() > size){
+            shops = new ArrayList<>(shops.subList(0, size));
+            next = PageCursor.encode(shops.get(size - 1).getId());
+        }
+        return Result.ok(new CursorResult(shops, next));
+    }
+
+    /*
+    * 按距离分页：GEORADIUS按距离升序取前end个，跳过前from个
+    * 店铺详情批量从缓存中获取，复制后再设置距离，不修改缓存中共享的对象
+    * */
+    private Result queryShopByTypeNearby(Integer typeId, Integer current, Double x, Double y){
+        //1. 计算分页参数
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        //2. 查询附近的店铺 GEORADIUS key x y radius m WITHDIST ASC COUNT end
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId,
+                new Circle(new Point(x, y), new Distance(nearbyRadiusMeters, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null || results.getContent().size() <= from){
+            return Result.ok(Collections.emptyList());
+        }
+        //3. 截取from ~ end的部分，记录店铺id和距离
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> list = results.getContent();
+        List<Long> ids = new ArrayList<>(end - from);
+        Map<Long, Double> distances = new HashMap<>(end - from);
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : list.subList(from, list.size())) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distances.put(id, result.getDistance().getValue());
+        }
+        //4. 批量查询店铺
+        Map<Long, Shop> shops = caCheClient.queryBatchWithPassThrough(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //5. 按距离顺序返回，店铺类型已变更的跳过
+        List<Shop> nearby = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Shop shop = shops.get(id);
+            if (shop == null || !typeId.equals(shop.getTypeId() == null ? null : shop.getTypeId().intValue())){
+                continue;
+            }
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(id));
+            nearby.add(copy);
+        }
+        return Result.ok(nearby);
+    }
+
+    /*按id分页读取tb_shop，每页按类型分组后通过一次pipeline写入 shop:geo:{typeId}*/
+    @Override
+    public long loadShopGeo() {
+        long lastId = 0;
+        long count = 0;
+        while (true){
+            List<Shop> page = list(new QueryWrapper<Shop>().select("id", "type_id", "x", "y")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + SHOP_GEO_LOAD_BATCH));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Shop shop : page) {
+                    if (shop.getTypeId() != null && shop.getX() != null && shop.getY() != null){
+                        stringConnection.geoAdd(SHOP_GEO_KEY + shop.getTypeId(),
+                                new Point(shop.getX(), shop.getY()), shop.getId().toString());
+                    }
+                }
+                return null;
+            });
+            count += page.size();
+            if (page.size() < SHOP_GEO_LOAD_BATCH){
+                return count;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    /*把店铺的最新坐标写入所属类型的GEO集合*/
+    private void saveShopGeo(Shop shop){
+        if (shop != null && shop.getTypeId() != null && shop.getX() != null && shop.getY() != null){
+            stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                    new Point(shop.getX(), shop.getY()), shop.getId().toString());
+        }
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        //1. 写入数据库
+        save(shop);
+        //2. 加入布隆过滤器，并通知其他节点
+        if (bloomExpectedInsertions > 0){
+            caCheClient.addToBloomFilter(CACHE_SHOP_KEY, shop.getId());
+        }
+        //3. 加入所属类型的GEO集合
+        saveShopGeo(shop);
+        //4. 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result queryById(Long id) {
        //缓存穿透
@@ -58,186 +323,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
-    /*创建线程池*/
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-    //逻辑过期解决缓存击穿
+    //逻辑过期解决缓存击穿，缓存需先通过saveShopToRedis预热
     public Shop queryWithLogicalExpire(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        //1. 从Redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否命中
-        if (StrUtil.isBlank(shopJson)){
-            //3. 未命中，直接返回
-            return null;
-        }
-        //4. 命中，需要先把Json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //5. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1 未过期，则直接返回店铺信息
-            return shop;
-        }
-        //5.2 已过期，则需要缓存重建
-        //6. 缓存重建
-        //6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //6.2 判断互斥锁是否获取成功
-        if (isLock){
-            //6.3 成功，再次检测redis中缓存是否过期，跟解决缓存击穿时同理
-            RedisData redisData2 = JSONUtil.toBean(shopJson, RedisData.class);
-            Shop shop2 = JSONUtil.toBean((JSONObject) redisData2.getData(), Shop.class);
-            LocalDateTime expireTime2 = redisData2.getExpireTime();
-            if (expireTime2.isAfter(LocalDateTime.now())){
-                //未过期，则直接返回店铺信息
-                return shop2;
-            }else {
-                //过期，开启独立线程，实现缓存重建
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    try {
-                        //重建缓存
-                        this.saveShopToRedis(id, 20L);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }finally {
-                        //释放锁
-                        unLock(lockKey);
-                    }
-                });
-            }
-        }
-        /*if (isLock){
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    //重建缓存
-                    this.saveShopToRedis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }*/
-        //6.4 失败，返回过期的店铺信息
-        return shop;
+        return caCheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, 20L, TimeUnit.SECONDS);
     }
 
-    //互斥锁解决缓存击穿
+    //互斥锁解决缓存击穿，本JVM内合并请求后再竞争Redis互斥锁
     public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-        //1. 从Redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)){
-            //3. 存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断是空值还是null
-        if (shopJson != null){
-            //如果为空值，则返回一个错误信息
-            return null;
-        }
-        //4. 实现缓存重建
-        //4.1 获取互斥锁
-        String lockKey = "lpck:shop:" + id;
-        boolean isLock = tryLock(lockKey);
-        //4.2 判断互斥锁是否获取成功
-        if (!isLock){
-            //4.3 失败，则休眠并重试
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            queryWithMutex(id);
-        }
-
-        //4.4 成功获取互斥锁
-        String shopJson2 = stringRedisTemplate.opsForValue().get(key);
-        //再次检测redis缓存是否存在，如果不存在则需重建缓存
-        if (StrUtil.isBlank(shopJson2)){
-            /*try {
-                //模拟延迟
-                *//*Thread.sleep(200);*//*
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }*/
-            //查询数据库
-            Shop shop = getById(id);
-            //5. 数据库中不存在，返回错误信息
-            if (shop == null){
-                //将空值写入带Redis中
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            //6. 数据库中存在，写入到Redis中
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-            //7. 释放互斥锁
-            unLock(lockKey);
-            //8. 返回
-            return shop;
-        //如果存在则无需重建缓存
-        }else {
-            return JSONUtil.toBean(shopJson2, Shop.class);
-        }
+        return caCheClient.queryWithMutex(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /*缓存穿透问题*/
     public Shop queryWithPassThrough(Long id){
-        String key = CACHE_SHOP_KEY + id;
-        //1. 从Redis中查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        //2. 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)){
-            //3. 存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        //判断是空值还是null
-        if (shopJson != null){
-            //如果为空值，则返回一个错误信息
-            return null;
-        }
-        //4. 不存在，根据id查询数据库
-        Shop shop = getById(id);
-        //5. 数据库中不存在，返回错误信息
-        if (shop == null){
-            //将空值写入带Redis中
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        //6. 数据库中存在，写入到Redis中
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        //7. 返回
-        return shop;
-    }
-
-    /*尝试获取互斥锁*/
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        return caCheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    /*释放互斥锁*/
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
-    }
-
-    /*手动设置shop缓存*/
-    public void saveShopToRedis(Long id, Long expireSeconds) throws InterruptedException {
-        //1. 查询店铺信息
-        Shop shop = getById(id);
-        //手动设置延迟
-        Thread.sleep(200);
-        //2. 设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3. 写入Redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+    /*手动设置shop缓存，按逻辑过期的格式写入，与CaCheClient使用同一个codec*/
+    public void saveShopToRedis(Long id, Long expireSeconds){
+        caCheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, getById(id), expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -246,10 +349,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null){
             return Result.fail("店铺id不能为空！");
         }
-        //1. 更新数据库
+        //1. 更新类型或坐标时，先查询原来的类型和坐标
+        boolean geoChanged = shop.getTypeId() != null || shop.getX() != null || shop.getY() != null;
+        Shop old = geoChanged ? getOne(new QueryWrapper<Shop>().select("id", "type_id", "x", "y").eq("id", id)) : null;
+        //2. 更新数据库
         updateById(shop);
-        //2. 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //3. 删除缓存，同时通知各节点清除本地一级缓存
+        caCheClient.delete(CACHE_SHOP_KEY + id);
+        if (old == null){
+            return Result.ok();
+        }
+        //4. 更新GEO集合，updateById不更新为null的字段，未传入的字段沿用原值；店铺类型变化时从原类型的集合中移除
+        Shop latest = new Shop().setId(id)
+                .setTypeId(shop.getTypeId() != null ? shop.getTypeId() : old.getTypeId())
+                .setX(shop.getX() != null ? shop.getX() : old.getX())
+                .setY(shop.getY() != null ? shop.getY() : old.getY());
+        if (old.getTypeId() != null && !old.getTypeId().equals(latest.getTypeId())){
+            stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+        }
+        saveShopGeo(latest);
         return Result.ok();
     }
 }
@@ -4,24 +4,45 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
 import cn.hutool.core.lang.UUID;
 import cn.hutool.core.util.RandomUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.wyn.dto.LoginFormDTO;
 import com.wyn.dto.Result;
 import com.wyn.dto.UserDTO;
+import com.wyn.entity.Sign;
 import com.wyn.entity.User;
+import com.wyn.mapper.SignMapper;
 import com.wyn.mapper.UserMapper;
 import com.wyn.service.IUserService;
+import com.wyn.utils.CaCheClient;
+import com.wyn.utils.RateLimiter;
 import com.wyn.utils.RegexUtils;
+import com.wyn.utils.SignedTokenService;
+import com.wyn.utils.TokenSessionCache;
+import com.wyn.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.wyn.utils.RedisConstants.*;
 import static com.wyn.utils.SystemConstants.USER_NICK_NAME_PREFIX;
@@ -35,9 +56,26 @@ import static com.wyn.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 @Service
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
+    private static final DateTimeFormatter SIGN_MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CaCheClient caCheClient;
+
+    @Resource
+    private TokenSessionCache tokenSessionCache;
+
+    @Resource
+    private SignedTokenService signedTokenService;
+
+    @Resource
+    private RateLimiter rateLimiter;
+
+    @Resource
+    private SignMapper signMapper;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         //1、效验手机号
@@ -68,6 +106,11 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             //2. 如果不符合，则报错
             return Result.fail("手机号格式错误");
         }
+        //按手机号限制登录尝试次数，防止暴力猜测验证码
+        if (!rateLimiter.tryAcquire(Collections.singletonList(
+                RateLimiter.Limit.perMinute("login:phone:" + phone, LOGIN_PHONE_PER_MINUTE)))){
+            return Result.fail("登录尝试过于频繁，请稍后再试");
+        }
         /*//3. 效验验证码
         Object cacheCode = session.getAttribute("code");
         String code = loginForm.getCode();*/
@@ -93,11 +136,16 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         /*//8. 保存用户信息到session中
         session.setAttribute("user", BeanUtil.copyProperties(user, UserDTO.class));*/
 
+        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
+        //签名令牌模式下直接签发令牌，不保存会话
+        if (signedTokenService.isEnabled()){
+            return Result.ok(signedTokenService.issue(userDTO));
+        }
+
         //  8. 保存用户信息带Redis中
         //8.1  随机生成token，作为登录令牌
         String token = UUID.randomUUID().toString(true);
         //8.2  将User对象转为HashMap存储
-        UserDTO userDTO = BeanUtil.copyProperties(user, UserDTO.class);
         /*将userDao中的id属性由Long类型转化为string类型，否则userMap无法存储到Redis中*/
         Map<String, Object> userMap = BeanUtil.beanToMap(userDTO, new HashMap<>(),
                 CopyOptions.create()
@@ -113,6 +161,21 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public Result logout(String token) {
+        if (StrUtil.isBlank(token)){
+            return Result.fail("未登录");
+        }
+        if (signedTokenService.isEnabled()){
+            //吊销令牌
+            signedTokenService.revoke(token);
+            return Result.ok();
+        }
+        //删除会话，并通知各节点清除本地缓存
+        tokenSessionCache.invalidate(token);
+        return Result.ok();
+    }
+
     private User createUserWithPhone(String phone) {
         //1. 创建用户
         User user = new User();
@@ -122,4 +185,105 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         save(user);
         return user;
     }
+
+    /*SETBIT sign:{userId}:yyyyMM 日期-1 1*/
+    @Override
+    public Result sign() {
+        //1. 获取登录用户和当前日期
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        //2. 写入当天对应的bit，返回原来的值
+        Boolean signed = stringRedisTemplate.opsForValue()
+                .setBit(signKey(userId, today), today.getDayOfMonth() - 1, true);
+        if (Boolean.TRUE.equals(signed)){
+            return Result.fail("今天已经签到过了！");
+        }
+        return Result.ok();
+    }
+
+    /*
+    * 一次pipeline读取本月截止今天的bit和上个月的32个bit
+    * 本月签到天数为bit中1的个数；连续签到天数为从今天起往前连续的1的个数，本月全部签到时接着数上个月月末的部分
+    * */
+    @Override
+    public Result signCount() {
+        //1. 获取登录用户和当前日期
+        Long userId = UserHolder.getUser().getId();
+        LocalDate today = LocalDate.now();
+        LocalDate lastMonth = today.minusMonths(1);
+        int day = today.getDayOfMonth();
+        //2. BITFIELD sign:{userId}:本月 GET u{day} 0 ; BITFIELD sign:{userId}:上月 GET u32 0
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.bitfield(signKey(userId, today), BitFieldSubCommands.create()
+                    .get(BitFieldSubCommands.BitFieldType.unsigned(day)).valueAt(0));
+            stringConnection.bitfield(signKey(userId, lastMonth), BitFieldSubCommands.create()
+                    .get(BitFieldSubCommands.BitFieldType.unsigned(32)).valueAt(0));
+            return null;
+        });
+        long current = firstBitField(values.get(0));
+        //3. 最低位为今天，数末尾连续的1
+        int continuous = Long.numberOfTrailingZeros(~current);
+        if (continuous == day){
+            //本月每天都签到了，上个月从最后一天往前继续数
+            long previous = firstBitField(values.get(1)) >>> (32 - lastMonth.lengthOfMonth());
+            continuous += Long.numberOfTrailingZeros(~previous);
+        }
+        Map<String, Integer> result = new HashMap<>(4);
+        result.put("count", Long.bitCount(current));
+        result.put("continuous", continuous);
+        return Result.ok(result);
+    }
+
+    /*查询某月签到的日期，Redis中没有时(已过期)读取tb_sign中的归档*/
+    @Override
+    public Result signOfMonth(String month) {
+        //1. 解析月份
+        YearMonth yearMonth;
+        try {
+            yearMonth = YearMonth.parse(month, SIGN_MONTH_FORMATTER);
+        } catch (DateTimeParseException e) {
+            return Result.fail("月份格式错误！");
+        }
+        //2. BITFIELD sign:{userId}:yyyyMM GET u32 0
+        Long userId = UserHolder.getUser().getId();
+        List<Long> values = stringRedisTemplate.opsForValue().bitField(USER_SIGN_KEY + userId + ":" + yearMonth.format(SIGN_MONTH_FORMATTER),
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(32)).valueAt(0));
+        long bits = values == null || values.isEmpty() || values.get(0) == null ? 0 : values.get(0);
+        //3. 往月在Redis中没有记录时查询归档
+        if (bits == 0 && yearMonth.isBefore(YearMonth.now())){
+            Sign sign = signMapper.selectOne(new QueryWrapper<Sign>().eq("user_id", userId)
+                    .eq("year", yearMonth.getYear()).eq("month", yearMonth.getMonthValue()));
+            bits = sign == null ? 0 : sign.getBits();
+        }
+        //4. 从最高位起第n位为第n天
+        List<Integer> days = new ArrayList<>();
+        for (int d = 1; d <= yearMonth.lengthOfMonth(); d++) {
+            if ((bits >>> (32 - d) & 1) == 1){
+                days.add(d);
+            }
+        }
+        return Result.ok(days);
+    }
+
+    private static String signKey(Long userId, LocalDate date){
+        return USER_SIGN_KEY + userId + ":" + date.format(SIGN_MONTH_FORMATTER);
+    }
+
+    /*pipeline中BITFIELD的返回值为只有一个元素的列表，key不存在时为0*/
+    private static long firstBitField(Object value){
+        if (value instanceof List && !((List<?>) value).isEmpty() && ((List<?>) value).get(0) != null){
+            return ((Number) ((List<?>) value).get(0)).longValue();
+        }
+        return 0;
+    }
+
+    @Override
+    public Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids) {
+        //只缓存昵称、头像等公开信息，不缓存密码、手机号
+        return caCheClient.queryBatchWithPassThrough(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
 }
@@ -1,41 +1,67 @@
 package com.wyn.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
 import com.wyn.dto.Result;
+import com.wyn.entity.SeckillVoucher;
 import com.wyn.entity.VoucherOrder;
 import com.wyn.mapper.VoucherOrderMapper;
 import com.wyn.service.ISeckillVoucherService;
 import com.wyn.service.IVoucherOrderService;
+import com.wyn.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.wyn.utils.RedisIdWorker;
+import com.wyn.utils.RedisLease;
+import com.wyn.utils.SeckillKeys;
 import com.wyn.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.wyn.utils.RedisConstants.*;
 
 /**
  * <p>
  *  服务实现类
  * </p>
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    @Resource
+    private IVoucherService voucherService;
+
     @Resource
     private RedisIdWorker redisIdWorker;
 
@@ -43,7 +69,34 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    /*代理对象，落库线程通过它调用事务方法*/
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    /*Stream分区数，同一个用户的订单总是进入同一个分区，每个分区一个落库线程*/
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int workerCount;
+
+    /*每批最多落库的订单数*/
+    @Value("${hmdp.seckill.order.batch-size:200}")
+    private int batchSize;
+
+    /*Stream中没有消息时阻塞等待的时间(毫秒)*/
+    @Value("${hmdp.seckill.order.block-ms:2000}")
+    private long blockMs;
+
+    /*消费者名称*/
+    @Value("${hmdp.seckill.order.consumer:}")
+    private String consumerName;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
 
 
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
@@ -53,92 +106,460 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setResultType(Long.class);
     }
 
-    //添加阻塞队列
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    /*从兄弟分片借库存并发送订单消息*/
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+    static {
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    //秒杀脚本各返回值对应的提示信息
+    private static final String[] SECKILL_FAIL_MESSAGES = {null, "库存不足", "不能重复下单", "秒杀尚未开始", "秒杀已经结束", "秒杀库存尚未加载"};
+
+    //各秒杀券的库存分片数
+    private final Map<Long, Integer> stockShards = new ConcurrentHashMap<>();
 
-    //创建单线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    //本节点已知售罄的秒杀券，命中后直接拒绝，不再访问Redis
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+
+    //消息投递后超过该时间仍未确认，视为消费者已宕机，由其他消费者认领
+    private static final Duration RECLAIM_IDLE = Duration.ofSeconds(60);
+
+    //每次检查pending-list的最大条数
+    private static final int RECLAIM_COUNT = 100;
+
+    //超过该投递次数仍未成功的消息转入死信队列
+    private static final long MAX_DELIVERY_COUNT = 5;
+
+    //pending-list中的消息处理失败后，等待该时间再重新处理，期间继续读取新消息
+    private static final long PENDING_RETRY_BACKOFF_MS = 1000;
+
+    //库存尚未加载时，没拿到加载锁的请求重试Redis的最大次数及间隔，加载锁的有效期(秒)
+    private static final int RELOAD_MAX_RETRIES = 20;
+    private static final long RELOAD_RETRY_MILLIS = 50;
+    private static final long RELOAD_LOCK_TTL = 10;
+
+    //从数据库加载秒杀库存的互斥锁，同一张券同时只有一个请求查询数据库
+    private RedisLease reloadLease;
+
+    //落库线程池，每个分区一个线程
+    private ExecutorService seckillOrderExecutor;
+
+    //定时认领宕机消费者遗留的消息
+    private ScheduledExecutorService pendingReclaimExecutor;
+
+    //有新认领消息、需要重新处理pending-list的分区
+    private final Set<Integer> claimedPartitions = ConcurrentHashMap.newKeySet();
+
+    /*订单落库指标：落库订单数、批大小、每批耗时、pending消息数*/
+    private Counter persistedCounter;
+    private DistributionSummary batchSizeSummary;
+    private Timer batchTimer;
+    private final AtomicLong pendingGauge = new AtomicLong();
 
     /*在类初始化的时候执行线程池*/
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        persistedCounter = Counter.builder("seckill.order.persisted")
+                .description("已落库的秒杀订单数").register(meterRegistry);
+        batchSizeSummary = DistributionSummary.builder("seckill.order.batch.size")
+                .description("每批落库的订单数").register(meterRegistry);
+        batchTimer = Timer.builder("seckill.order.batch.latency")
+                .description("每批订单落库耗时").register(meterRegistry);
+        meterRegistry.gauge("seckill.order.pending", pendingGauge);
+
+        if (StrUtil.isBlank(consumerName)){
+            consumerName = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        reloadLease = new RedisLease(stringRedisTemplate);
+        seckillOrderExecutor = Executors.newFixedThreadPool(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            //1. 创建消费者组，Stream不存在时一并创建
+            createGroupIfAbsent(SECKILL_ORDER_STREAM_KEY + i);
+            //2. 每个分区启动一个落库线程
+            seckillOrderExecutor.submit(new VoucherOrderHandler(i));
+        }
+        //3. 订阅售罄、补库存广播，维护本地售罄标记
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOutVouchers.add(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> soldOutVouchers.remove(Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8))),
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        pendingReclaimExecutor = Executors.newSingleThreadScheduledExecutor();
+        pendingReclaimExecutor.scheduleWithFixedDelay(this::reclaimPendingOrders,
+                RECLAIM_IDLE.getSeconds(), RECLAIM_IDLE.getSeconds() / 2, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        pendingReclaimExecutor.shutdownNow();
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    /*XGROUP CREATE key g1 0 MKSTREAM，组已存在时忽略*/
+    private void createGroupIfAbsent(String streamKey){
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            if (!StrUtil.contains(e.getMessage(), "BUSYGROUP")){
+                throw e;
+            }
+        }
     }
 
     private class VoucherOrderHandler implements Runnable{
 
+        private final int partition;
+
+        private final String streamKey;
+
+        VoucherOrderHandler(int partition) {
+            this.partition = partition;
+            this.streamKey = SECKILL_ORDER_STREAM_KEY + partition;
+        }
+
         @Override
         public void run(){
-            while (true){
+            //启动时先处理上次未确认的消息
+            boolean readPending = true;
+            //下次重新处理pending-list的时间，0表示没有等待重试的消息
+            long retryPendingAt = 0;
+            while (!Thread.currentThread().isInterrupted()){
                 try {
-                    //1. 获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //2. 创建订单
-                    handleVoucherOrder(voucherOrder);
+                    long now = System.currentTimeMillis();
+                    if (readPending || claimedPartitions.remove(partition)
+                            || (retryPendingAt > 0 && now >= retryPendingAt)){
+                        //1. 处理pending-list：有消息被确认时继续处理，读完时结束
+                        BatchResult result = handleOrders(streamKey, true, null);
+                        readPending = result.acked > 0;
+                        //1.1 有消息仍未确认，退避一段时间后再重试，期间继续读取新消息，不阻塞整个分区
+                        retryPendingAt = result.read > result.acked ? now + PENDING_RETRY_BACKOFF_MS : 0;
+                        continue;
+                    }
+                    //2. 读取新消息 XREADGROUP GROUP g1 consumer COUNT batchSize BLOCK blockMs STREAMS key >
+                    long blockMillis = retryPendingAt > 0 ? Math.max(1, Math.min(blockMs, retryPendingAt - now)) : blockMs;
+                    BatchResult result = handleOrders(streamKey, false, Duration.ofMillis(blockMillis));
+                    if (result.read > result.acked && retryPendingAt == 0){
+                        retryPendingAt = now + PENDING_RETRY_BACKOFF_MS;
+                    }
                 } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()){
+                        break;
+                    }
                     log.error("订单处理异常",e);
+                    //3. 出现异常，消息留在pending-list中，退避后重新处理
+                    retryPendingAt = System.currentTimeMillis() + PENDING_RETRY_BACKOFF_MS;
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
         }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder){
-        //1. 获取用户
-        Long userId = voucherOrder.getUserId();
-        //2. 创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        //3. 获取锁
-        boolean isLock = lock.tryLock();
-        //4. 判断是否获取锁成功
-        if (!isLock){
-            //获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
-            return;
+    /*一批消息的处理结果：读到的条数、确认(落库或转入死信队列)的条数*/
+    private static class BatchResult {
+        static final BatchResult EMPTY = new BatchResult(0, 0);
+
+        final int read;
+        final int acked;
+
+        BatchResult(int read, int acked) {
+            this.read = read;
+            this.acked = acked;
+        }
+    }
+
+    /*
+    * 以本消费者的身份从一个分区读取消息
+    * read的参数是泛型可变参数，调用处会生成泛型数组；这里只传入一个偏移量，不存在堆污染，只在此处抑制警告
+    * */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readGroup(StreamReadOptions options, StreamOffset<String> offset){
+        return stringRedisTemplate.opsForStream().read(Consumer.from(SECKILL_ORDER_GROUP, consumerName), options, offset);
+    }
+
+    /*
+    * 读取一批订单消息并落库，pending为true时读取本消费者的pending-list，否则读取新消息
+    * 重新处理pending-list时，投递次数已达MAX_DELIVERY_COUNT的消息直接转入死信队列；无法解析的消息重试也不会成功，同样转入
+    * */
+    private BatchResult handleOrders(String streamKey, boolean pending, Duration block){
+        StreamReadOptions options = StreamReadOptions.empty().count(batchSize);
+        if (block != null){
+            options = options.block(block);
+        }
+        ReadOffset offset = pending ? ReadOffset.from("0") : ReadOffset.lastConsumed();
+        List<MapRecord<String, Object, Object>> allRecords = readGroup(options, StreamOffset.create(streamKey, offset));
+        if (allRecords == null || allRecords.isEmpty()){
+            return BatchResult.EMPTY;
+        }
+        long begin = System.nanoTime();
+        //1. 过滤掉投递次数超限、无法解析的消息，解析其余消息中的订单信息
+        Map<RecordId, Long> deliveryCounts = pending ? deliveryCounts(streamKey, allRecords) : Collections.emptyMap();
+        int deadLettered = 0;
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(allRecords.size());
+        List<VoucherOrder> voucherOrders = new ArrayList<>(allRecords.size());
+        for (MapRecord<String, Object, Object> record : allRecords) {
+            VoucherOrder voucherOrder = parseOrder(record);
+            if (voucherOrder == null || deliveryCounts.getOrDefault(record.getId(), 0L) >= MAX_DELIVERY_COUNT){
+                moveToDeadLetter(streamKey, record.getId(), record.getValue());
+                deadLettered++;
+                continue;
+            }
+            records.add(record);
+            voucherOrders.add(voucherOrder);
+        }
+        if (records.isEmpty()){
+            return new BatchResult(allRecords.size(), deadLettered);
         }
+        List<RecordId> handled = new ArrayList<>(records.size());
         try {
-            proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
+            //2. 整批在一个事务中落库
+            proxy.createVoucherOrderBatch(voucherOrders);
+            records.forEach(record -> handled.add(record.getId()));
+        } catch (Exception e) {
+            //3. 整批失败时逐条重试，避免一条异常订单拖垮整批
+            log.error("批量创建订单失败，逐条重试", e);
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                try {
+                    proxy.createVoucherOrder(voucherOrders.get(i));
+                    handled.add(records.get(i).getId());
+                } catch (Exception ex) {
+                    log.error("订单创建失败：" + voucherOrders.get(i).getId(), ex);
+                }
+            }
+        }
+        //4. 事务提交后再确认消息 XACK，未确认的消息留在pending-list中等待重试
+        if (!handled.isEmpty()){
+            stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, handled.toArray(new RecordId[0]));
         }
+        batchTimer.record(System.nanoTime() - begin, TimeUnit.NANOSECONDS);
+        batchSizeSummary.record(voucherOrders.size());
+        return new BatchResult(allRecords.size(), handled.size() + deadLettered);
     }
 
-    private IVoucherOrderService proxy;
+    /*解析订单消息，缺少字段或格式错误时返回null*/
+    private static VoucherOrder parseOrder(MapRecord<String, Object, Object> record){
+        try {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), false);
+            if (voucherOrder.getId() == null || voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null){
+                return null;
+            }
+            return voucherOrder;
+        } catch (Exception e) {
+            log.error("订单消息格式错误，id=" + record.getId(), e);
+            return null;
+        }
+    }
+
+    /*XPENDING key g1 firstId lastId count consumer，查询本批消息各自的投递次数*/
+    private Map<RecordId, Long> deliveryCounts(String streamKey, List<MapRecord<String, Object, Object>> records){
+        PendingMessages pendingMessages = stringRedisTemplate.opsForStream().pending(streamKey,
+                Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                Range.closed(records.get(0).getId().getValue(), records.get(records.size() - 1).getId().getValue()),
+                (long) records.size());
+        Map<RecordId, Long> counts = new HashMap<>(records.size() * 2);
+        for (PendingMessage message : pendingMessages) {
+            counts.put(message.getId(), message.getTotalDeliveryCount());
+        }
+        return counts;
+    }
+
+    /*认领超时未确认的消息，交给本节点对应分区的落库线程处理*/
+    private void reclaimPendingOrders(){
+        long pendingTotal = 0;
+        for (int i = 0; i < workerCount; i++) {
+            String streamKey = SECKILL_ORDER_STREAM_KEY + i;
+            try {
+                //1. 查询pending-list XPENDING key g1 - + count
+                PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, SECKILL_ORDER_GROUP, Range.unbounded(), RECLAIM_COUNT);
+                pendingTotal += pendingMessages.size();
+                List<RecordId> stuck = new ArrayList<>();
+                for (PendingMessage message : pendingMessages) {
+                    if (message.getElapsedTimeSinceLastDelivery().compareTo(RECLAIM_IDLE) < 0){
+                        continue;
+                    }
+                    //2. 多次投递仍失败，转入死信队列
+                    if (message.getTotalDeliveryCount() >= MAX_DELIVERY_COUNT){
+                        moveToDeadLetter(streamKey, message.getId());
+                        continue;
+                    }
+                    stuck.add(message.getId());
+                }
+                if (stuck.isEmpty()){
+                    continue;
+                }
+                //3. 认领到当前消费者 XCLAIM key g1 consumer minIdle ids JUSTID
+                RedisStreamCommands.XClaimOptions claimOptions =
+                        RedisStreamCommands.XClaimOptions.minIdle(RECLAIM_IDLE).ids(stuck.toArray(new RecordId[0]));
+                List<RecordId> claimed = stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                        connection.xClaimJustId(streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, consumerName, claimOptions));
+                if (claimed != null && !claimed.isEmpty()){
+                    log.warn("认领超时未确认的订单消息 {} 条，stream={}", claimed.size(), streamKey);
+                    claimedPartitions.add(i);
+                }
+            } catch (Exception e) {
+                log.error("认领pending消息异常，stream=" + streamKey, e);
+            }
+        }
+        pendingGauge.set(pendingTotal);
+    }
+
+    private void moveToDeadLetter(String streamKey, RecordId recordId){
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(streamKey, Range.closed(recordId.getValue(), recordId.getValue()));
+        moveToDeadLetter(streamKey, recordId, records == null || records.isEmpty() ? null : records.get(0).getValue());
+    }
+
+    private void moveToDeadLetter(String streamKey, RecordId recordId, Map<Object, Object> value){
+        if (value != null && !value.isEmpty()){
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ_KEY, value);
+        }
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, recordId);
+        log.error("订单消息多次处理失败，已转入死信队列，stream={}, id={}", streamKey, recordId);
+    }
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        //0. 本地已标记售罄，直接拒绝
+        if (soldOutVouchers.contains(voucherId)){
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
-        //1. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString()
-        );
+        /*订单Id*/
+        long orderId = redisIdWorker.nextId("order");
+        //1. 执行lua脚本，有购买资格时由脚本把订单写入该用户所在分区的Stream
+        int r = tryAcquireStock(voucherId, userId, orderId);
+        if (r == 5){
+            //1.0 库存尚未加载到Redis，只有一个请求从数据库预热，其余请求等待后重试
+            r = reloadAndAcquireStock(voucherId, userId, orderId);
+            if (r < 0){
+                return Result.fail("秒杀券不存在");
+            }
+        }
+        if (r == 1 && soldOutVouchers.add(voucherId)){
+            //1.1 库存不足，标记售罄并广播给其他节点
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
         //2. 判断结果为0
-        int r = result.intValue();
         if (r != 0){
             //2.1 不为0,代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
         }
-        //2.2 为0，有购买资格，把下单信息保存到阻塞队列
-        VoucherOrder voucherOrder = new VoucherOrder();
-        /*订单Id*/
-        long orderId = redisIdWorker.nextId("order");
-        voucherOrder.setId(orderId);
-        /*用户Id*/
-        voucherOrder.setUserId(userId);
-        /*代金券Id*/
-        voucherOrder.setVoucherId(voucherId);
-        //放入阻塞队列
-        orderTasks.add(voucherOrder);
-
-        //3. 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
-        //4. 返回订单id
+        //3. 为0，有购买资格，订单已进入消息队列，返回订单id
         return Result.ok(orderId);
     }
 
+    /*
+    * 扣减Redis库存并登记下单，返回0代表有购买资格，1代表库存不足，2代表重复下单，3代表秒杀尚未开始，4代表秒杀已经结束，5代表库存尚未加载
+    * 开启库存分片时先扣用户所在分片，该分片为空再依次向兄弟分片借库存
+    * 每个脚本只访问同一个分片(同一个slot)的key，借库存时先在用户所在分片登记用户，再在兄弟分片上原子地扣库存并发送订单消息，
+    * 中途宕机最多留下一个没有订单的登记用户，不会丢失库存
+    * 不做接近售罄时在分片之间搬运库存的再平衡：各分片在不同slot，搬运无法在一个脚本中原子完成，中途宕机会丢失库存；
+    * 向兄弟分片借库存已保证任一分片还有库存时都能准入，代价只是售罄前多几次脚本调用
+    * */
+    private int tryAcquireStock(Long voucherId, Long userId, long orderId){
+        int shards = stockShardsOf(voucherId);
+        int home = SeckillKeys.shardOf(userId, shards);
+        //不分片时按userId分区，分片时进入分片对应的分区，与分片的库存在同一个slot
+        String streamKey = shards <= 1
+                ? SeckillKeys.streamKey((int) Math.floorMod(userId, (long) workerCount)) : SeckillKeys.streamKey(home);
+        String orderKey = SeckillKeys.orderKey(voucherId, home, shards);
+        String[] args = {voucherId.toString(), userId.toString(), String.valueOf(orderId)};
+        //1. 在用户所在分片上判断秒杀时间、一人一单并扣库存
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Arrays.asList(SeckillKeys.stockKey(voucherId, home, shards), orderKey, streamKey,
+                        SeckillKeys.windowKey(voucherId, home, shards)),
+                (Object[]) args
+        );
+        int r = result.intValue();
+        if (r != 1 || shards == 1){
+            return r;
+        }
+        //2. 用户所在分片已空，先登记用户，同一用户的并发请求只有一个能继续
+        String user = userId.toString();
+        Long added = stringRedisTemplate.opsForSet().add(orderKey, user);
+        if (added == null || added == 0){
+            return 2;
+        }
+        //3. 依次向兄弟分片借一个库存，借到时订单消息进入兄弟分片对应的分区
+        for (int i = 1; i < shards; i++) {
+            int sibling = (home + i) % shards;
+            Long borrowed = stringRedisTemplate.execute(BORROW_SCRIPT,
+                    Arrays.asList(SeckillKeys.stockKey(voucherId, sibling, shards), SeckillKeys.streamKey(sibling)),
+                    (Object[]) args);
+            if (borrowed != null && borrowed == 1){
+                return 0;
+            }
+        }
+        //4. 所有分片都已售罄，撤销登记
+        stringRedisTemplate.opsForSet().remove(orderKey, user);
+        return 1;
+    }
+
+    /*
+    * 库存尚未加载时调用，返回值与tryAcquireStock相同，秒杀券不存在时返回-1
+    * 拿到加载锁的请求再次检测后查询数据库并预热，没拿到的请求等待后重试Redis，秒杀开始时不会有大量请求同时查询数据库
+    * 等待超时仍未加载时返回5
+    * */
+    private int reloadAndAcquireStock(Long voucherId, Long userId, long orderId){
+        String lockKey = SECKILL_RELOAD_LOCK_KEY + voucherId;
+        int r = 5;
+        for (int i = 0; i < RELOAD_MAX_RETRIES && r == 5; i++) {
+            if (reloadLease.tryAcquire(lockKey, RELOAD_LOCK_TTL, TimeUnit.SECONDS)){
+                try {
+                    //1. 再次检测，其他请求可能刚预热完成
+                    r = tryAcquireStock(voucherId, userId, orderId);
+                    if (r != 5){
+                        return r;
+                    }
+                    //2. 查询数据库并预热
+                    SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+                    if (seckillVoucher == null){
+                        return -1;
+                    }
+                    voucherService.warmUpSeckillVouchers(Collections.singletonList(seckillVoucher));
+                } finally {
+                    reloadLease.release(lockKey);
+                }
+                return tryAcquireStock(voucherId, userId, orderId);
+            }
+            //3. 其他请求正在加载，等待后重试Redis
+            try {
+                Thread.sleep(RELOAD_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            r = tryAcquireStock(voucherId, userId, orderId);
+        }
+        return r;
+    }
+
+    /*库存分片数，addSeckillVoucher时写入Redis，之后不再变化，读到后缓存在本地*/
+    private int stockShardsOf(Long voucherId){
+        Integer shards = stockShards.get(voucherId);
+        if (shards != null){
+            return shards;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SHARDS_KEY + voucherId);
+        if (StrUtil.isBlank(value)){
+            //旧数据没有分片信息，按不分片处理
+            return 1;
+        }
+        shards = Integer.valueOf(value);
+        stockShards.put(voucherId, shards);
+        return shards;
+    }
+
     /*@Override
     public Result seckillVoucher(Long voucherId) {
         //1. 查询优惠券
@@ -210,6 +631,61 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         //7. 创建订单
         save(voucherOrder);
+        persistedCounter.increment();
         return Result.ok("下单成功");
     }
+
+    /*批量创建订单：每张券一次聚合扣减库存，整批一次多行插入*/
+    @Override
+    @Transactional
+    public void createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        //1. 按代金券分组
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            //2. 一人一单：先在批次内去重，再一次查询出已经下过单的用户
+            Map<Long, VoucherOrder> ordersOfUser = new LinkedHashMap<>();
+            for (VoucherOrder voucherOrder : entry.getValue()) {
+                ordersOfUser.putIfAbsent(voucherOrder.getUserId(), voucherOrder);
+            }
+            query().select("user_id")
+                    .eq("voucher_id", voucherId).in("user_id", ordersOfUser.keySet())
+                    .list()
+                    .forEach(exist -> ordersOfUser.remove(exist.getUserId()));
+            if (ordersOfUser.isEmpty()){
+                log.error("每人最多购买一次！");
+                continue;
+            }
+            //3. 聚合扣减库存 set stock = stock - k where voucher_id = ? and stock >= k
+            int k = ordersOfUser.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .update();
+            if (success){
+                toSave.addAll(ordersOfUser.values());
+                continue;
+            }
+            //4. 库存不够整批扣减，退化为逐条扣减，能扣多少下多少单
+            for (VoucherOrder voucherOrder : ordersOfUser.values()) {
+                boolean single = seckillVoucherService.update()
+                        .setSql("stock = stock - 1")
+                        .eq("voucher_id", voucherId).gt("stock", 0)
+                        .update();
+                if (!single){
+                    log.error("库存不足！");
+                    break;
+                }
+                toSave.add(voucherOrder);
+            }
+        }
+        if (toSave.isEmpty()){
+            return;
+        }
+        //5. 多行插入订单
+        getBaseMapper().insertBatch(toSave);
+        persistedCounter.increment(toSave.size());
+    }
 }
@@ -7,14 +7,25 @@ import com.wyn.mapper.VoucherMapper;
 import com.wyn.entity.SeckillVoucher;
 import com.wyn.service.ISeckillVoucherService;
 import com.wyn.service.IVoucherService;
+import com.wyn.utils.SeckillKeys;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
-import static com.wyn.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.wyn.utils.RedisConstants.SECKILL_SHARDS_KEY;
 
 /**
  * <p>
@@ -30,6 +41,10 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /*订单分区数，库存分片与订单分区一一对应，分片数不能超过它*/
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int orderWorkers;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -50,7 +65,108 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀券库存到Redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //保存秒杀券库存、秒杀时间到Redis中
+        int shards = voucher.getStockShards() == null ? 1 : Math.max(1, Math.min(voucher.getStockShards(), orderWorkers));
+        saveSeckillVoucherToRedis(seckillVoucher, shards, true);
+        //通知各节点清除本地的售罄标记
+        publishRestock(voucher.getId());
+    }
+
+    /*已有秒杀券的Redis库存增加后调用，通知各节点清除本地的售罄标记，否则这些节点会一直拒绝该券的请求*/
+    private void publishRestock(Long voucherId) {
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    /*
+    * 分片数沿用Redis中已有的配置，没有时为1；库存用SETNX写入，不会覆盖秒杀中已经扣减的库存
+    * 所有秒杀券在同一次pipeline中完成；库存key原本不存在(如Redis重启、被淘汰)而被重新写入的券，广播补货
+    * */
+    @Override
+    public void warmUpSeckillVouchers(List<SeckillVoucher> seckillVouchers) {
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        //1. 一次MGET查询各券的分片数
+        List<String> shardKeys = seckillVouchers.stream()
+                .map(v -> SECKILL_SHARDS_KEY + v.getVoucherId()).collect(Collectors.toList());
+        List<String> shardValues = stringRedisTemplate.opsForValue().multiGet(shardKeys);
+        int[] shards = new int[seckillVouchers.size()];
+        List<String> stockKeys = new ArrayList<>();
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            String shardValue = shardValues == null ? null : shardValues.get(i);
+            shards[i] = shardValue == null ? 1 : Integer.parseInt(shardValue);
+            for (int j = 0; j < shards[i]; j++) {
+                stockKeys.add(SeckillKeys.stockKey(seckillVouchers.get(i).getVoucherId(), j, shards[i]));
+            }
+        }
+        //2. 一次MGET找出库存key缺失、将被重新写入库存的券
+        List<String> stockValues = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        List<Long> restocked = new ArrayList<>();
+        int index = 0;
+        for (int i = 0; i < seckillVouchers.size(); i++) {
+            boolean missing = false;
+            for (int j = 0; j < shards[i]; j++, index++) {
+                missing |= stockValues == null || stockValues.get(index) == null;
+            }
+            Integer stock = seckillVouchers.get(i).getStock();
+            if (missing && stock != null && stock > 0) {
+                restocked.add(seckillVouchers.get(i).getVoucherId());
+            }
+        }
+        //3. 写入库存、秒杀时间
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (int i = 0; i < seckillVouchers.size(); i++) {
+                writeSeckillVoucher(stringConnection, seckillVouchers.get(i), shards[i], false);
+            }
+            return null;
+        });
+        //4. 广播补货
+        restocked.forEach(this::publishRestock);
+    }
+
+    /*
+    * 把库存平均拆分到shards个分片，除不尽的部分分给前几个分片，每个分片各保存一份秒杀时间
+    * 分片数也写入Redis，下单时据此路由到用户所在的分片；所有写操作通过一次pipeline完成
+    * */
+    private void saveSeckillVoucherToRedis(SeckillVoucher seckillVoucher, int shards, boolean overwrite) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writeSeckillVoucher((StringRedisConnection) connection, seckillVoucher, shards, overwrite);
+            return null;
+        });
+    }
+
+    private static void writeSeckillVoucher(StringRedisConnection stringConnection, SeckillVoucher seckillVoucher,
+                                            int shards, boolean overwrite) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        Map<String, String> window = new HashMap<>(2);
+        if (seckillVoucher.getBeginTime() != null) {
+            window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        }
+        if (seckillVoucher.getEndTime() != null) {
+            window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        }
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            String stockKey = SeckillKeys.stockKey(voucherId, i, shards);
+            if (overwrite) {
+                stringConnection.set(stockKey, String.valueOf(shardStock));
+            } else {
+                stringConnection.setNX(stockKey, String.valueOf(shardStock));
+            }
+            if (!window.isEmpty()) {
+                stringConnection.hMSet(SeckillKeys.windowKey(voucherId, i, shards), window);
+            }
+        }
+        if (overwrite) {
+            stringConnection.set(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        } else {
+            stringConnection.setNX(SECKILL_SHARDS_KEY + voucherId, String.valueOf(shards));
+        }
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 }
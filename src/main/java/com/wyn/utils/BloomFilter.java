@@ -0,0 +1,74 @@
+package com.wyn.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+* 本地布隆过滤器，线程安全，只能添加不能删除
+* 位数组 m = -n * ln(p) / (ln2)^2，哈希次数 k = m / n * ln2
+* 通过murmur128得到两个哈希值，按 h1 + i * h2 得到k个位置
+* */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    private final int hashCount;
+
+    /*已置为1的位数，用于估算误判率*/
+    private final AtomicLong bitCount = new AtomicLong();
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long m = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (m + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(String value) {
+        long[] hash = MurmurHash.hash128(value);
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            setBit((combined & Long.MAX_VALUE) % bitSize);
+            combined += hash[1];
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long[] hash = MurmurHash.hash128(value);
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            if (!getBit((combined & Long.MAX_VALUE) % bitSize)) {
+                return false;
+            }
+            combined += hash[1];
+        }
+        return true;
+    }
+
+    /*按当前置位比例估算的误判率 (bitCount / m)^k*/
+    public double expectedFpp() {
+        return Math.pow((double) bitCount.get() / bitSize, hashCount);
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+        bitCount.incrementAndGet();
+    }
+
+    private boolean getBit(long index) {
+        return (bits.get((int) (index >>> 6)) & (1L << index)) != 0;
+    }
+}
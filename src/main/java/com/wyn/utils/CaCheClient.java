@@ -1,18 +1,45 @@
 package com.wyn.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.wyn.utils.RedisConstants.*;
 
@@ -25,55 +52,521 @@ import static com.wyn.utils.RedisConstants.*;
 @Component
 public class CaCheClient {
 
+    /*空值，表示数据库中不存在*/
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
     private final StringRedisTemplate stringRedisTemplate;
 
+    /*缓存值按codec编码后以字节数组读写*/
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    private final CacheCodec codec;
+
+    private final MeterRegistry meterRegistry;
+
+    /*XFetch随机数的下限，-ln(1e-12)约为27.6，提前量最多为 delta * beta 的27.6倍*/
+    private static final double MIN_XFETCH_RANDOM = 1e-12;
+
+    /*XFetch提前刷新系数，越大越早刷新*/
+    private final double xfetchBeta;
+
+    /*没有记录重建耗时的条目(预热、手动写入)按该耗时(毫秒)计算提前量*/
+    private final long xfetchDefaultDeltaMs;
+
+    /*缓存重建线程池，队列有界，满时丢弃*/
+    private static final ExecutorService CACHE_REBUILD_EXECUTOR = new ThreadPoolExecutor(
+            10, 10, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1000));
+
+    /*已提交重建的key，避免同一个key重复排队*/
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
+    /*本地缓存中表示"数据库中不存在"的空值*/
+    private static final Object NULL_VALUE = new Object();
+
+    /*各key前缀的本地一级缓存，只有调用过enableLocalCache的前缀才会使用*/
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
 
-    public CaCheClient(StringRedisTemplate stringRedisTemplate) {
+    /*正在加载中的key，同一个JVM内同一个key同时只有一个线程查询数据库，其余线程等待它的结果*/
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /*
+    * 各key前缀的布隆过滤器，构建完成后判定id不存在时直接返回null，不再查询Redis和数据库
+    * 新增数据通过addToBloomFilter加入并经发布订阅同步到各节点(开启CacheChangeTailer时后台直接插入的数据也会加入)
+    * 节点错过了广播、或后台直接插入而未开启cdc时，新数据会被误判为不存在，直到调用方下一次定期重建过滤器
+    * */
+    private final Map<String, BloomGuard> bloomFilters = new ConcurrentHashMap<>();
+
+    /*获取不到互斥锁时的最大重试次数及重试间隔，超过后直接查询数据库*/
+    private static final int MUTEX_MAX_RETRIES = 20;
+    private static final long MUTEX_RETRY_MILLIS = 50;
+
+    public CaCheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheCodec codec, MeterRegistry meterRegistry,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       @Value("${hmdp.cache.xfetch-beta:50}") double xfetchBeta,
+                       @Value("${hmdp.cache.xfetch-default-delta-ms:20}") long xfetchDefaultDeltaMs) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.codec = codec;
+        this.meterRegistry = meterRegistry;
+        this.xfetchBeta = xfetchBeta;
+        this.xfetchDefaultDeltaMs = xfetchDefaultDeltaMs;
+        //其他节点删除缓存时，同步清除本节点的一级缓存
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            //批量删除时多个key以换行分隔
+            for (String key : new String(message.getBody(), StandardCharsets.UTF_8).split("\n")) {
+                invalidateLocal(key);
+            }
+        }, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        //其他节点新增数据时，同步加入本节点的布隆过滤器，多个key以换行分隔
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            for (String key : new String(message.getBody(), StandardCharsets.UTF_8).split("\n")) {
+                putBloomLocal(key);
+            }
+        }, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+    }
+
+    /*
+    * 为keyPrefix注册布隆过滤器，注册后新增的id立即加入，调用方随后把已有的id全部加入，再调用enableBloomFilter启用
+    * 先注册再构建，构建期间新增的数据不会丢失
+    * 已注册过时作为重建：构建期间仍按旧的过滤器判断，新增的id同时加入新旧两个过滤器，enableBloomFilter时替换
+    * cache.bloom.rejected为被拦截的次数，cache.bloom.false.positive为通过了过滤器但数据库中不存在的次数
+    * 两者之比即实际误判率，cache.bloom.expected.fpp为按置位比例估算的误判率
+    * cache.bloom.false.negative为过滤器判定不存在、数据库中却存在的次数，正常应为0
+    * */
+    public void registerBloomFilter(String keyPrefix, BloomFilter filter){
+        BloomGuard existing = bloomFilters.get(keyPrefix);
+        if (existing != null){
+            existing.rebuilding = filter;
+            return;
+        }
+        Tags tags = Tags.of("prefix", keyPrefix);
+        BloomGuard guard = new BloomGuard(filter,
+                meterRegistry.counter("cache.bloom.rejected", tags),
+                meterRegistry.counter("cache.bloom.false.positive", tags),
+                meterRegistry.counter("cache.bloom.false.negative", tags));
+        meterRegistry.gauge("cache.bloom.expected.fpp", tags, guard, g -> g.filter.expectedFpp());
+        bloomFilters.put(keyPrefix, guard);
+    }
+
+    /*已有的id全部加入后调用，开始按过滤器判断；重建时换上新的过滤器*/
+    public void enableBloomFilter(String keyPrefix){
+        BloomGuard guard = bloomFilters.get(keyPrefix);
+        if (guard == null){
+            return;
+        }
+        BloomFilter rebuilding = guard.rebuilding;
+        if (rebuilding != null){
+            guard.filter = rebuilding;
+            guard.rebuilding = null;
+        }
+        guard.ready = true;
+    }
+
+    /*keyPrefix的布隆过滤器是否已构建完成*/
+    public boolean isBloomFilterReady(String keyPrefix){
+        BloomGuard guard = bloomFilters.get(keyPrefix);
+        return guard != null && guard.ready;
+    }
+
+    /*新增数据后调用，加入本节点的布隆过滤器并广播给其他节点*/
+    public void addToBloomFilter(String keyPrefix, Object id){
+        addToBloomFilter(Collections.singletonList(keyPrefix + id));
+    }
+
+    /*批量加入，不属于任何布隆过滤器的key被忽略，一次广播*/
+    public void addToBloomFilter(Collection<String> keys){
+        List<String> added = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (putBloomLocal(key)){
+                added.add(key);
+            }
+        }
+        if (!added.isEmpty()){
+            stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, String.join("\n", added));
+        }
+    }
+
+    private boolean putBloomLocal(String key){
+        for (Map.Entry<String, BloomGuard> entry : bloomFilters.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                entry.getValue().put(key.substring(entry.getKey().length()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*布隆过滤器构建完成、且判断id一定不存在时返回true*/
+    private boolean rejectedByBloom(String keyPrefix, Object id){
+        BloomGuard guard = bloomFilters.get(keyPrefix);
+        if (guard == null || !guard.ready || guard.filter.mightContain(String.valueOf(id))){
+            return false;
+        }
+        guard.rejected.increment();
+        return true;
+    }
+
+    /*数据库中存在的数据不在过滤器中时补进去，并记录一次漏判*/
+    private void repairBloom(String key){
+        for (Map.Entry<String, BloomGuard> entry : bloomFilters.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                BloomGuard guard = entry.getValue();
+                String id = key.substring(entry.getKey().length());
+                if (guard.ready && !guard.filter.mightContain(id)){
+                    guard.put(id);
+                    guard.falseNegative.increment();
+                }
+                return;
+            }
+        }
+    }
+
+    /*
+    * 为keyPrefix开启进程内一级缓存，按容量和写入后的存活时间淘汰
+    * 一级缓存中的对象会被多个请求共享，调用方不要修改返回的对象
+    * 命中、未命中、淘汰次数以 cache.* 指标按prefix分别暴露
+    * */
+    public void enableLocalCache(String keyPrefix, long maximumSize, Duration ttl){
+        Cache<String, Object> cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        localCaches.put(keyPrefix, cache);
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "local", Tags.of("prefix", keyPrefix));
+    }
+
+    /*删除缓存，并广播给所有节点清除一级缓存*/
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /*批量删除缓存，只广播一条消息*/
+    public void deleteBatch(Collection<String> keys){
+        if (keys.isEmpty()){
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        keys.forEach(this::invalidateLocal);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, String.join("\n", keys));
+    }
+
+    private void invalidateLocal(String key){
+        Cache<String, Object> cache = localCacheOf(key);
+        if (cache != null){
+            cache.invalidate(key);
+        }
+    }
+
+    private Cache<String, Object> localCacheOf(String key){
+        if (localCaches.isEmpty()){
+            return null;
+        }
+        for (Map.Entry<String, Cache<String, Object>> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                return entry.getValue();
+            }
+        }
+        return null;
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        cacheRedisTemplate.opsForValue().set(key, codec.encode(value), time, unit);
+    }
+
+    /*通过一次pipeline批量写入，用于预热*/
+    public void setBatch(Map<String, ?> values, Long time, TimeUnit unit){
+        if (values.isEmpty()){
+            return;
+        }
+        long seconds = unit.toSeconds(time);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) ->
+                    connection.setEx(key.getBytes(StandardCharsets.UTF_8), seconds, codec.encode(value)));
+            return null;
+        });
+    }
+
+    /*读取set写入的值，未命中返回null*/
+    public <R> R get(String key, Class<R> type){
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        return bytes == null || bytes.length == 0 ? null : codec.decode(bytes, type);
     }
 
+    /*读取set写入的列表，未命中返回null*/
+    public <R> List<R> getList(String key, Class<R> elementType){
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        return bytes == null || bytes.length == 0 ? null : codec.decodeList(bytes, elementType);
+    }
+
+    /*没有测量重建耗时，按默认耗时记录，同样参与提前刷新*/
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        setWithLogicalExpire(key, value, time, unit, xfetchDefaultDeltaMs);
+    }
+
+    /*delta为重建耗时(毫秒)，用于提前刷新*/
+    public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, Long delta){
         //设置逻辑过期时间
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        redisData.setDelta(delta);
         // 写入Redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value));
+        cacheRedisTemplate.opsForValue().set(key, codec.encode(redisData));
     }
 
     /*缓存穿透问题*/
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
+        //0. 布隆过滤器判断id不存在，直接返回
+        if (rejectedByBloom(keyPrefix, id)){
+            return null;
+        }
+        //先查本地一级缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null){
+            Object local = localCache.getIfPresent(key);
+            if (local != null){
+                return local == NULL_VALUE ? null : type.cast(local);
+            }
+        }
         //1. 从Redis中查询商铺缓存
-        String Json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
         //2. 判断是否存在
-        if (StrUtil.isNotBlank(Json)){
+        if (bytes != null && bytes.length > 0){
             //3. 存在，直接返回
-            return JSONUtil.toBean(Json, type);
+            R r = codec.decode(bytes, type);
+            putLocal(localCache, key, r);
+            return r;
         }
         //判断是空值还是null
-        if (Json != null){
+        if (bytes != null){
             //如果为空值，则返回一个错误信息
+            putLocal(localCache, key, null);
             return null;
         }
-        //4. 不存在，根据id查询数据库
+        //4. 不存在，根据id查询数据库，同一个key只有一个线程真正查询
+        return singleFlight(key, () -> {
+            //4.1 再次检测缓存：上一次合并的查询可能在本线程读取Redis之后、进入合并之前刚写回
+            byte[] bytes2 = cacheRedisTemplate.opsForValue().get(key);
+            if (bytes2 != null){
+                R r = bytes2.length > 0 ? codec.decode(bytes2, type) : null;
+                putLocal(localCache, key, r);
+                return r;
+            }
+            return loadAndCache(key, id, dbFallback, time, unit, localCache);
+        });
+    }
+
+    /*
+    * 互斥锁解决缓存击穿
+    * 本JVM内先通过singleFlight合并，只有一个线程去竞争Redis互斥锁，跨节点也只有一个线程查询数据库
+    * 获取锁失败时有限次重试读取缓存，不递归
+    * */
+    public <R, ID> R queryWithMutex(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type,
+                                    Function<ID, R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        if (rejectedByBloom(keyPrefix, id)){
+            return null;
+        }
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null){
+            Object local = localCache.getIfPresent(key);
+            if (local != null){
+                return local == NULL_VALUE ? null : type.cast(local);
+            }
+        }
+        //1. 从Redis中查询缓存
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes != null){
+            R r = bytes.length > 0 ? codec.decode(bytes, type) : null;
+            putLocal(localCache, key, r);
+            return r;
+        }
+        //2. 实现缓存重建
+        String lockKey = lockKeyPrefix + id;
+        return singleFlight(key, () -> {
+            for (int i = 0; i < MUTEX_MAX_RETRIES; i++) {
+                //2.1 获取互斥锁
+                if (tryLock(lockKey)){
+                    try {
+                        //2.2 再次检测缓存，其他节点可能已经重建完成
+                        byte[] bytes2 = cacheRedisTemplate.opsForValue().get(key);
+                        if (bytes2 != null){
+                            R r = bytes2.length > 0 ? codec.decode(bytes2, type) : null;
+                            putLocal(localCache, key, r);
+                            return r;
+                        }
+                        return loadAndCache(key, id, dbFallback, time, unit, localCache);
+                    } finally {
+                        unLock(lockKey);
+                    }
+                }
+                //2.3 失败，休眠后重新读取缓存
+                try {
+                    Thread.sleep(MUTEX_RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                byte[] bytes2 = cacheRedisTemplate.opsForValue().get(key);
+                if (bytes2 != null){
+                    R r = bytes2.length > 0 ? codec.decode(bytes2, type) : null;
+                    putLocal(localCache, key, r);
+                    return r;
+                }
+            }
+            //2.4 持锁者迟迟没有写回缓存，直接查询数据库
+            return loadAndCache(key, id, dbFallback, time, unit, localCache);
+        });
+    }
+
+    /*查询数据库并写入缓存，数据库中不存在时写入空值*/
+    private <R, ID> R loadAndCache(String key, ID id, Function<ID, R> dbFallback, Long time, TimeUnit unit,
+                                   Cache<String, Object> localCache){
         R r = dbFallback.apply(id);
         //5. 数据库中不存在，返回错误信息
         if (r == null){
+            countBloomFalsePositive(key);
             //将空值写入带Redis中
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            cacheRedisTemplate.opsForValue().set(key, EMPTY_VALUE, CACHE_NULL_TTL, TimeUnit.MINUTES);
+            putLocal(localCache, key, null);
             return null;
         }
         //6. 数据库中存在，写入到Redis中
+        repairBloom(key);
         this.set(key, r, time, unit);
+        putLocal(localCache, key, r);
         //7. 返回
         return r;
     }
 
+    private void countBloomFalsePositive(String key){
+        for (Map.Entry<String, BloomGuard> entry : bloomFilters.entrySet()) {
+            if (key.startsWith(entry.getKey())){
+                entry.getValue().falsePositive.increment();
+                return;
+            }
+        }
+    }
+
+    /*
+    * 同一个key同时只执行一次loader，并发的调用方等待并共享同一个结果
+    * loader结束后立即移除，之后到达的调用方会开始新的一次，因此loader内部需要先再次检测缓存
+    * loader抛出Error时同样结束等待的调用方，否则它们会一直阻塞
+    * */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader){
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = inFlightLoads.putIfAbsent(key, future);
+        if (running != null){
+            try {
+                return (R) running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException){
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error){
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
+
+    /*
+    * 批量查询，解决列表接口逐个查询的问题
+    * 一次MGET查询Redis，未命中的id通过一次batchDbFallback(IN查询)查询数据库，再用pipeline批量写回
+    * batchDbFallback返回 id -> 数据，数据库中不存在的id不放入即可，会写入空值
+    * 返回的Map按ids的顺序，不包含不存在的id
+    * */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<List<ID>, Map<ID, R>> batchDbFallback, Long time, TimeUnit unit){
+        Map<ID, R> result = new LinkedHashMap<>();
+        if (ids == null || ids.isEmpty()){
+            return result;
+        }
+        //1. 去重，过滤掉布隆过滤器判断不存在的id，并查询本地一级缓存
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        List<ID> redisIds = new ArrayList<>();
+        for (ID id : new LinkedHashSet<>(ids)) {
+            result.put(id, null);
+            if (rejectedByBloom(keyPrefix, id)){
+                continue;
+            }
+            Object local = localCache == null ? null : localCache.getIfPresent(keyPrefix + id);
+            if (local == null){
+                redisIds.add(id);
+            } else if (local != NULL_VALUE){
+                result.put(id, type.cast(local));
+            }
+        }
+        //2. 一次MGET查询Redis
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()){
+            List<String> keys = new ArrayList<>(redisIds.size());
+            for (ID id : redisIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < redisIds.size(); i++) {
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null){
+                    missIds.add(redisIds.get(i));
+                    continue;
+                }
+                //空值表示数据库中不存在
+                R r = bytes.length > 0 ? codec.decode(bytes, type) : null;
+                putLocal(localCache, keys.get(i), r);
+                result.put(redisIds.get(i), r);
+            }
+        }
+        //3. 未命中的id一次查询数据库，并用pipeline批量写回Redis
+        if (!missIds.isEmpty()){
+            Map<ID, R> loaded = batchDbFallback.apply(missIds);
+            cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (ID id : missIds) {
+                    String key = keyPrefix + id;
+                    R r = loaded == null ? null : loaded.get(id);
+                    byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                    if (r == null){
+                        countBloomFalsePositive(key);
+                        connection.setEx(rawKey, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), EMPTY_VALUE);
+                    } else {
+                        repairBloom(key);
+                        connection.setEx(rawKey, unit.toSeconds(time), codec.encode(r));
+                    }
+                    putLocal(localCache, key, r);
+                    result.put(id, r);
+                }
+                return null;
+            });
+        }
+        //4. 去掉不存在的id
+        result.values().removeIf(Objects::isNull);
+        return result;
+    }
+
+    private static void putLocal(Cache<String, Object> localCache, String key, Object value){
+        if (localCache != null){
+            localCache.put(key, value == null ? NULL_VALUE : value);
+        }
+    }
+
     /*尝试获取互斥锁*/
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -85,74 +578,128 @@ public class CaCheClient {
         stringRedisTemplate.delete(key);
     }
 
-    /*创建线程池*/
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     //逻辑过期解决缓存击穿
+    /*
+    * XFetch提前刷新：越接近过期、重建耗时(delta)越长，越有可能提前触发重建
+    * 触发条件 now - delta * beta * ln(random) >= expireTime，提前量服从均值为 delta * beta 的指数分布
+    * delta为一次数据库查询的毫秒数，预热等没有测量过的条目按xfetchDefaultDeltaMs计算；
+    * 默认beta为50，delta为20ms时平均提前1秒，按 期望提前量 / delta 调整beta
+    * 重建是异步的，提前量小于重建耗时时，过期后到重建完成前仍会返回旧数据
+    * beta为0时只在过期后重建
+    * */
     public <R, ID> R queryWithLogicalExpire(
             String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit){
         String key = keyPrefix + id;
         //1. 从Redis中查询商铺缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
         //2. 判断是否命中
-        if (StrUtil.isBlank(json)){
+        if (bytes == null || bytes.length == 0){
             //3. 未命中，直接返回
             return null;
         }
-        //4. 命中，需要先把Json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //4. 命中，一次解码出过期时间和对象
+        RedisData redisData = codec.decodeLogical(bytes, type);
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
-        //5. 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            //5.1 未过期，则直接返回店铺信息
+        //5. 判断是否需要重建，不需要则直接返回
+        if (!shouldRefresh(expireTime, redisData.getDelta())) {
             return r;
         }
-        //5.2 已过期，则需要缓存重建
-        //6. 缓存重建
-        //6.1 获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //6.2 判断互斥锁是否获取成功
-        if (isLock){
-            //6.3 成功，再次检测redis中缓存是否过期，跟解决缓存击穿时同理
-            RedisData redisData2 = JSONUtil.toBean(json, RedisData.class);
-            R r2 = JSONUtil.toBean((JSONObject) redisData2.getData(), type);
-            LocalDateTime expireTime2 = redisData2.getExpireTime();
-            if (expireTime2.isAfter(LocalDateTime.now())){
-                //未过期，则直接返回店铺信息
-                return r2;
-            }else {
-                //过期，开启独立线程，实现缓存重建
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    try {
-                        //查询数据库
-                        R r3 = dbFallback.apply(id);
-                        //写入redis
-                        this.setWithLogicalExpire(key, r3, time, unit);
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }finally {
-                        //释放锁
-                        unLock(lockKey);
-                    }
-                });
+        //6. 提交异步重建，同一个key只排队一次，返回当前的数据
+        submitRebuild(key, () -> {
+            //6.1 获取互斥锁，锁按缓存key区分，不同前缀互不影响
+            String lockKey = CACHE_REBUILD_LOCK_KEY + key;
+            if (!tryLock(lockKey)){
+                return;
             }
+            try {
+                //6.2 再次检测，其他节点可能已经刷新
+                byte[] bytes2 = cacheRedisTemplate.opsForValue().get(key);
+                if (bytes2 != null && bytes2.length > 0
+                        && !expireTime.equals(codec.decodeLogical(bytes2, type).getExpireTime())){
+                    return;
+                }
+                //6.3 查询数据库并记录重建耗时
+                long begin = System.currentTimeMillis();
+                R r2 = dbFallback.apply(id);
+                long delta = System.currentTimeMillis() - begin;
+                //6.4 写入redis
+                this.setWithLogicalExpire(key, r2, time, unit, delta);
+            } finally {
+                //释放锁
+                unLock(lockKey);
+            }
+        });
+        return r;
+    }
+
+    private boolean shouldRefresh(LocalDateTime expireTime, Long delta){
+        LocalDateTime now = LocalDateTime.now();
+        if (!expireTime.isAfter(now)){
+            return true;
+        }
+        if (xfetchBeta <= 0){
+            return false;
+        }
+        //写入时没有记录耗时的旧条目按默认耗时计算
+        if (delta == null || delta <= 0){
+            delta = xfetchDefaultDeltaMs;
         }
-        /*if (isLock){
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
+        //-ln(random)服从指数分布，均值为1；nextDouble可能返回0，-ln(0)为无穷大，取一个极小的下限
+        double random = Math.max(ThreadLocalRandom.current().nextDouble(), MIN_XFETCH_RANDOM);
+        long earlyMillis = (long) (delta * xfetchBeta * -Math.log(random));
+        return !expireTime.isAfter(now.plus(earlyMillis, ChronoUnit.MILLIS));
+    }
+
+    /*提交重建任务，已在排队或执行中的key直接忽略，队列满时丢弃*/
+    private void submitRebuild(String key, Runnable task){
+        if (!rebuildingKeys.add(key)){
+            return;
+        }
+        try {
+            CACHE_REBUILD_EXECUTOR.execute(() -> {
                 try {
-                    //重建缓存
-                    this.saveShopToRedis(id, 20L);
+                    task.run();
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unLock(lockKey);
+                    log.error("缓存重建失败，key=" + key, e);
+                } finally {
+                    rebuildingKeys.remove(key);
                 }
             });
-        }*/
-        //6.4 失败，返回过期的店铺信息
-        return r;
+        } catch (RejectedExecutionException e) {
+            rebuildingKeys.remove(key);
+            log.warn("缓存重建队列已满，丢弃重建，key={}", key);
+        }
+    }
+
+    private static class BloomGuard {
+        /*当前用于判断的过滤器*/
+        volatile BloomFilter filter;
+
+        /*正在重建的过滤器，重建完成后替换filter*/
+        volatile BloomFilter rebuilding;
+
+        final Counter rejected;
+        final Counter falsePositive;
+        final Counter falseNegative;
+
+        /*已有数据是否已全部加入*/
+        volatile boolean ready;
+
+        BloomGuard(BloomFilter filter, Counter rejected, Counter falsePositive, Counter falseNegative) {
+            this.filter = filter;
+            this.rejected = rejected;
+            this.falsePositive = falsePositive;
+            this.falseNegative = falseNegative;
+        }
+
+        /*新增的id同时加入正在重建的过滤器*/
+        void put(String id) {
+            filter.put(id);
+            BloomFilter next = rebuilding;
+            if (next != null){
+                next.put(id);
+            }
+        }
     }
 }
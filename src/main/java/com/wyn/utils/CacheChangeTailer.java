@@ -0,0 +1,113 @@
+package com.wyn.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.wyn.config.CacheChangeProperties;
+import com.wyn.entity.CacheChange;
+import com.wyn.mapper.CacheChangeMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.wyn.utils.RedisConstants.*;
+
+/*
+* 缓存变更监听：轮询tb_cache_change(由触发器写入，相当于本地的binlog)，按配置的规则把变更行映射为缓存key并删除
+* 任何途径写入数据库(包括后台直接执行SQL)都会使对应缓存失效，不再依赖每个写入方自己删除缓存
+* 同一轮询间隔内的变更去重后批量删除，并在doubleDeleteDelayMs后再删除一次，清掉并发重建时写回的旧数据
+* 变更行同时加入对应的布隆过滤器，后台直接插入的数据也不会被过滤器误判为不存在
+* 多个节点中只有持有租约的节点轮询
+* 自增id在插入时分配、提交时才可见，id较小的变更可能晚于id较大的变更提交，因此不记录读取位置，
+* 每次从表中最小的id读起，处理完后只删除本次处理过的行，晚提交的变更留在表中，下一次轮询读到
+* */
+@Slf4j
+@Component
+public class CacheChangeTailer {
+
+    /*轮询租约的有效期(秒)*/
+    private static final long LEASE_TTL = 30;
+
+    @Resource
+    private CacheChangeMapper cacheChangeMapper;
+
+    @Resource
+    private CaCheClient caCheClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheChangeProperties properties;
+
+    private RedisLease lease;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        if (!properties.isEnabled()){
+            return;
+        }
+        lease = new RedisLease(stringRedisTemplate);
+        //变更表或触发器未创建时不启动轮询，避免每次轮询都报错
+        try {
+            cacheChangeMapper.selectList(new QueryWrapper<CacheChange>().select("id").last("limit 1"));
+        } catch (Exception e) {
+            log.warn("tb_cache_change不可用，缓存变更监听未启动，请先执行hmdp.sql中的建表和触发器语句", e);
+            return;
+        }
+        executor.scheduleWithFixedDelay(this::poll, properties.getPollMs(), properties.getPollMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        executor.shutdownNow();
+    }
+
+    private void poll(){
+        try {
+            //1. 只有持有租约的节点轮询
+            if (!lease.hold(CACHE_CDC_LOCK_KEY, LEASE_TTL, TimeUnit.SECONDS)){
+                return;
+            }
+            //2. 从最小的id开始读取尚未处理的变更
+            List<CacheChange> changes = cacheChangeMapper.selectList(new QueryWrapper<CacheChange>()
+                    .orderByAsc("id").last("limit " + properties.getBatchSize()));
+            if (changes.isEmpty()){
+                return;
+            }
+            //3. 按规则映射为缓存key并去重
+            Set<String> keys = new LinkedHashSet<>();
+            for (CacheChange change : changes) {
+                String rule = properties.getRules().get(change.getTableName());
+                if (rule != null){
+                    keys.add(rule.replace("{id}", String.valueOf(change.getRowId())));
+                }
+            }
+            //4. 加入布隆过滤器，批量删除，并延迟再删除一次
+            if (!keys.isEmpty()){
+                caCheClient.addToBloomFilter(keys);
+                caCheClient.deleteBatch(keys);
+                if (properties.getDoubleDeleteDelayMs() > 0){
+                    executor.schedule(() -> caCheClient.deleteBatch(keys),
+                            properties.getDoubleDeleteDelayMs(), TimeUnit.MILLISECONDS);
+                }
+            }
+            //5. 只删除本次处理过的变更，期间晚提交的变更留到下一次轮询
+            List<Long> ids = changes.stream().map(CacheChange::getId).collect(Collectors.toList());
+            cacheChangeMapper.deleteBatchIds(ids);
+        } catch (Exception e) {
+            log.error("处理缓存变更失败", e);
+        }
+    }
+}
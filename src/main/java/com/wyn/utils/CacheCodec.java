@@ -0,0 +1,19 @@
+package com.wyn.utils;
+
+import java.util.List;
+
+/*
+* CaCheClient写入Redis的值的编解码方式
+* 空值(数据库中不存在)统一用长度为0的字节数组表示，编解码器不需要处理
+* */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementType);
+
+    /*解码逻辑过期的缓存，返回的RedisData中data已经是type类型，只解析一次*/
+    <T> RedisData decodeLogical(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,203 @@
+package com.wyn.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.wyn.entity.SeckillVoucher;
+import com.wyn.entity.Shop;
+import com.wyn.service.IBlogService;
+import com.wyn.service.ISeckillVoucherService;
+import com.wyn.service.IShopService;
+import com.wyn.service.IShopTypeService;
+import com.wyn.service.IVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.wyn.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.wyn.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/*
+* 缓存预热：启动后分页读取店铺、店铺类型和即将开始的秒杀券，通过pipeline批量写入Redis
+* 每秒读取的页数受限，避免预热本身压垮数据库
+* 之后定时检查，把seckill-lead-minutes内即将开始的秒杀券提前预热
+* 预热完成前健康检查返回OUT_OF_SERVICE，并在details中给出进度，可作为readiness探针
+* */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner, HealthIndicator {
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private CaCheClient caCheClient;
+
+    @Value("${hmdp.warmup.enabled:false}")
+    private boolean enabled;
+
+    /*每页读取的行数*/
+    @Value("${hmdp.warmup.page-size:500}")
+    private int pageSize;
+
+    /*每秒最多读取的页数*/
+    @Value("${hmdp.warmup.pages-per-second:5}")
+    private int pagesPerSecond;
+
+    /*最多预热的店铺数*/
+    @Value("${hmdp.warmup.shop-limit:10000}")
+    private int shopLimit;
+
+    /*秒杀券提前预热的时间(分钟)*/
+    @Value("${hmdp.warmup.seckill-lead-minutes:10}")
+    private long seckillLeadMinutes;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /*预热进度*/
+    private volatile boolean finished;
+    private final AtomicLong shops = new AtomicLong();
+    private final AtomicLong shopTypes = new AtomicLong();
+    private final AtomicLong seckillVouchers = new AtomicLong();
+
+    /*下一次允许读取数据库的时间(纳秒)*/
+    private long nextPageAt;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled){
+            finished = true;
+            return;
+        }
+        executor.execute(this::warmUp);
+        //定时预热即将开始的秒杀券
+        executor.scheduleWithFixedDelay(this::warmUpUpcomingVouchers, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Health health() {
+        Health.Builder builder = finished ? Health.up() : Health.outOfService();
+        return builder.withDetail("shops", shops.get())
+                .withDetail("shopTypes", shopTypes.get())
+                .withDetail("seckillVouchers", seckillVouchers.get())
+                .build();
+    }
+
+    private void warmUp(){
+        long begin = System.currentTimeMillis();
+        try {
+            warmUpShops();
+            shopService.loadShopGeo();
+            blogService.loadHotBlogs();
+            warmUpShopTypes();
+            warmUpUpcomingVouchers();
+            log.info("缓存预热完成，店铺{}个，店铺类型{}个，秒杀券{}张，耗时{}ms",
+                    shops.get(), shopTypes.get(), seckillVouchers.get(), System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            //预热失败不影响服务，未预热的数据在访问时按原逻辑加载
+            log.error("缓存预热失败", e);
+        } finally {
+            finished = true;
+        }
+    }
+
+    /*按id分页读取店铺，每页一次pipeline写入*/
+    private void warmUpShops(){
+        long lastId = 0;
+        while (shops.get() < shopLimit){
+            acquirePage();
+            List<Shop> page = shopService.list(new QueryWrapper<Shop>()
+                    .gt("id", lastId).orderByAsc("id").last("limit " + pageSize));
+            Map<String, Shop> values = new HashMap<>(page.size() * 2);
+            for (Shop shop : page) {
+                values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            caCheClient.setBatch(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            shops.addAndGet(page.size());
+            if (page.size() < pageSize){
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+    }
+
+    private void warmUpShopTypes(){
+        acquirePage();
+        //店铺类型整体缓存为一个列表，未命中时queryByList会加载并写入
+        Object types = shopTypeService.queryByList().getData();
+        if (types instanceof List){
+            shopTypes.set(((List<?>) types).size());
+        }
+    }
+
+    /*预热进行中和seckill-lead-minutes内开始的秒杀券，已存在的库存不会被覆盖*/
+    private void warmUpUpcomingVouchers(){
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            long lastId = 0;
+            while (true){
+                acquirePage();
+                List<SeckillVoucher> page = seckillVoucherService.list(new QueryWrapper<SeckillVoucher>()
+                        .gt("voucher_id", lastId)
+                        .gt("end_time", now)
+                        .le("begin_time", now.plusMinutes(seckillLeadMinutes))
+                        .orderByAsc("voucher_id").last("limit " + pageSize));
+                voucherService.warmUpSeckillVouchers(page);
+                if (!finished){
+                    seckillVouchers.addAndGet(page.size());
+                }
+                if (page.size() < pageSize){
+                    return;
+                }
+                lastId = page.get(page.size() - 1).getVoucherId();
+            }
+        } catch (Exception e) {
+            log.error("秒杀券预热失败", e);
+        }
+    }
+
+    /*简单限流：两页之间至少间隔 1s / pagesPerSecond，只在预热线程中调用*/
+    private void acquirePage(){
+        long now = System.nanoTime();
+        long wait = nextPageAt - now;
+        if (wait > 0){
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("缓存预热被中断", e);
+            }
+        }
+        nextPageAt = Math.max(now, nextPageAt) + TimeUnit.SECONDS.toNanos(1) / Math.max(1, pagesPerSecond);
+    }
+}
@@ -0,0 +1,259 @@
+package com.wyn.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.wyn.entity.Follow;
+import com.wyn.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.wyn.utils.RedisConstants.*;
+
+/*
+* 关注关系对账：定期按 (user_id, follow_user_id) 和 (follow_user_id, user_id) 两个索引顺序分块读取tb_follow，
+* 同一用户的行是连续的，读完一个用户后与Redis中的集合比较，多出或缺少的成员再查一次数据库确认后修复，
+* 避免把对账期间新发生的关注、取关当成不一致
+* 最后SCAN所有集合，删除数据库中已经没有任何关注关系的用户的集合
+* 每个周期只有一个节点执行：执行完成后设置FOLLOW_RECONCILED_KEY，有效期为一个周期，其他节点看到后跳过；
+* 执行期间持有较短的租约并逐块续期，结束后释放，节点宕机时租约很快过期，其他节点可以接手
+* 首次在启动后不久执行，同时完成Redis的初始加载；首次完整执行前，读完的集合逐个登记到FOLLOW_LOADED_SETS_KEY，
+* 完整执行后设置FOLLOW_LOADED_KEY，此后所有集合都视为已加载
+* */
+@Slf4j
+@Component
+public class FollowReconciler {
+
+    @Resource
+    private IFollowService followService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /*对账间隔(分钟)*/
+    @Value("${hmdp.follow.reconcile-minutes:60}")
+    private long reconcileMinutes;
+
+    /*每块读取的行数*/
+    @Value("${hmdp.follow.reconcile-batch:1000}")
+    private int reconcileBatch;
+
+    /*执行期间租约的有效期(分钟)，每读一块续期一次*/
+    private static final long LEASE_TTL_MINUTES = 5;
+
+    private RedisLease lease;
+
+    /*本次执行开始时集合是否已完整加载过，未加载过时逐个登记读完的集合*/
+    private boolean loaded;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        lease = new RedisLease(stringRedisTemplate);
+        executor.scheduleWithFixedDelay(this::reconcile,
+                10, TimeUnit.MINUTES.toSeconds(reconcileMinutes), TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        executor.shutdownNow();
+    }
+
+    private void reconcile(){
+        boolean acquired = false;
+        try {
+            //1. 本周期已有节点执行完成，或其他节点正在执行，跳过
+            if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(FOLLOW_RECONCILED_KEY))){
+                return;
+            }
+            acquired = lease.tryAcquire(FOLLOW_RECONCILE_LOCK_KEY, LEASE_TTL_MINUTES, TimeUnit.MINUTES);
+            if (!acquired){
+                return;
+            }
+            long begin = System.currentTimeMillis();
+            loaded = Boolean.TRUE.equals(stringRedisTemplate.hasKey(FOLLOW_LOADED_KEY));
+            //2. follows:{user_id} 和 followers:{follow_user_id} 分别对账
+            long follows = reconcile(new Side(FOLLOWS_KEY, "user_id", "follow_user_id",
+                    Follow::getUserId, Follow::getFollowUserId));
+            long followers = reconcile(new Side(FOLLOWERS_KEY, "follow_user_id", "user_id",
+                    Follow::getFollowUserId, Follow::getUserId));
+            //3. 标记已完整加载，本周期内其他节点不再执行
+            stringRedisTemplate.opsForValue().set(FOLLOW_LOADED_KEY, "1");
+            stringRedisTemplate.opsForValue().set(FOLLOW_RECONCILED_KEY, "1", reconcileMinutes, TimeUnit.MINUTES);
+            log.info("关注关系对账完成，修复关注集合{}个，粉丝集合{}个，耗时{}ms",
+                    follows, followers, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("关注关系对账失败", e);
+        } finally {
+            //4. 比较持有者后释放租约，宕机时由租约过期兜底
+            if (acquired){
+                releaseLease();
+            }
+        }
+    }
+
+    private void releaseLease(){
+        try {
+            lease.release(FOLLOW_RECONCILE_LOCK_KEY);
+        } catch (Exception e) {
+            log.warn("释放关注关系对账租约失败，等待租约过期", e);
+        }
+    }
+
+    /*按 (owner, member) keyset分块读取，返回修复的集合数*/
+    private long reconcile(Side side){
+        long repaired = 0;
+        long lastOwner = 0;
+        long lastMember = 0;
+        Long currentOwner = null;
+        Set<String> members = new HashSet<>();
+        while (true){
+            //每读一块续期一次，租约已被其他节点占用时停止
+            if (!lease.renew(FOLLOW_RECONCILE_LOCK_KEY, LEASE_TTL_MINUTES, TimeUnit.MINUTES)){
+                throw new IllegalStateException("关注关系对账租约已丢失");
+            }
+            List<Follow> page = followService.list(new QueryWrapper<Follow>()
+                    .select(side.ownerColumn, side.memberColumn)
+                    .apply("(" + side.ownerColumn + ", " + side.memberColumn + ") > ({0}, {1})", lastOwner, lastMember)
+                    .orderByAsc(side.ownerColumn, side.memberColumn)
+                    .last("limit " + reconcileBatch));
+            for (Follow follow : page) {
+                Long ownerId = side.owner.apply(follow);
+                if (!ownerId.equals(currentOwner)){
+                    //上一个用户的行已经读完
+                    if (currentOwner != null && repair(side, currentOwner, members)){
+                        repaired++;
+                    }
+                    currentOwner = ownerId;
+                    members = new HashSet<>();
+                }
+                members.add(side.member.apply(follow).toString());
+            }
+            if (page.size() < reconcileBatch){
+                break;
+            }
+            Follow last = page.get(page.size() - 1);
+            lastOwner = side.owner.apply(last);
+            lastMember = side.member.apply(last);
+        }
+        if (currentOwner != null && repair(side, currentOwner, members)){
+            repaired++;
+        }
+        return repaired + removeOrphans(side);
+    }
+
+    /*比较一个用户在数据库和Redis中的集合，不一致的成员确认后修复*/
+    private boolean repair(Side side, Long ownerId, Set<String> expected){
+        String key = side.keyPrefix + ownerId;
+        Set<String> actual = stringRedisTemplate.opsForSet().members(key);
+        if (actual == null){
+            actual = Collections.emptySet();
+        }
+        Set<String> missing = new HashSet<>(expected);
+        missing.removeAll(actual);
+        Set<String> extra = new HashSet<>(actual);
+        extra.removeAll(expected);
+        if (missing.isEmpty() && extra.isEmpty()){
+            markLoaded(key);
+            return false;
+        }
+        //1. 缺少的成员：数据库中仍然存在才补上
+        if (!missing.isEmpty()){
+            Set<String> exists = queryMembers(side, ownerId, missing);
+            if (!exists.isEmpty()){
+                stringRedisTemplate.opsForSet().add(key, exists.toArray(new String[0]));
+            }
+        }
+        //2. 多出的成员：数据库中仍然不存在才删除
+        if (!extra.isEmpty()){
+            extra.removeAll(queryMembers(side, ownerId, extra));
+            if (!extra.isEmpty()){
+                stringRedisTemplate.opsForSet().remove(key, extra.toArray());
+            }
+        }
+        markLoaded(key);
+        return true;
+    }
+
+    /*首次完整执行前，登记已与数据库一致的集合，查询时不必再从数据库加载*/
+    private void markLoaded(String key){
+        if (!loaded){
+            stringRedisTemplate.opsForSet().add(FOLLOW_LOADED_SETS_KEY, key);
+        }
+    }
+
+    private Set<String> queryMembers(Side side, Long ownerId, Collection<String> candidates){
+        return followService.list(new QueryWrapper<Follow>().select(side.memberColumn)
+                .eq(side.ownerColumn, ownerId).in(side.memberColumn, candidates))
+                .stream().map(follow -> side.member.apply(follow).toString()).collect(Collectors.toSet());
+    }
+
+    /*SCAN {keyPrefix}*，数据库中已经没有关系的用户删除其集合*/
+    private long removeOrphans(Side side){
+        ScanOptions options = ScanOptions.scanOptions().match(side.keyPrefix + "*").count(reconcileBatch).build();
+        long removed = 0;
+        try (Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            List<Long> owners = new ArrayList<>(reconcileBatch);
+            while (cursor != null && cursor.hasNext()){
+                String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                owners.add(Long.valueOf(key.substring(side.keyPrefix.length())));
+                if (owners.size() >= reconcileBatch){
+                    removed += removeOrphans(side, owners);
+                    owners.clear();
+                }
+            }
+            if (!owners.isEmpty()){
+                removed += removeOrphans(side, owners);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("扫描关注集合失败", e);
+        }
+        return removed;
+    }
+
+    private long removeOrphans(Side side, List<Long> owners){
+        Set<Long> exists = followService.list(new QueryWrapper<Follow>()
+                .select("DISTINCT " + side.ownerColumn).in(side.ownerColumn, owners))
+                .stream().map(side.owner).collect(Collectors.toSet());
+        List<String> orphans = owners.stream().filter(id -> !exists.contains(id))
+                .map(id -> side.keyPrefix + id).collect(Collectors.toList());
+        if (!orphans.isEmpty()){
+            stringRedisTemplate.delete(orphans);
+        }
+        return orphans.size();
+    }
+
+    /*对账的一侧：集合key前缀，以及数据库中作为集合所有者、成员的列*/
+    private static class Side {
+        final String keyPrefix;
+        final String ownerColumn;
+        final String memberColumn;
+        final Function<Follow, Long> owner;
+        final Function<Follow, Long> member;
+
+        Side(String keyPrefix, String ownerColumn, String memberColumn,
+             Function<Follow, Long> owner, Function<Follow, Long> member) {
+            this.keyPrefix = keyPrefix;
+            this.ownerColumn = ownerColumn;
+            this.memberColumn = memberColumn;
+            this.owner = owner;
+            this.member = member;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.wyn.utils;
+
+import cn.hutool.core.codec.Base64;
+import cn.hutool.core.util.StrUtil;
+
+import java.nio.charset.StandardCharsets;
+
+/*
+* 游标分页的游标：上一页最后一条记录的排序键和id，编码为URL安全的Base64，对调用方不透明
+* */
+public class PageCursor {
+
+    private static final String SEPARATOR = ",";
+
+    private PageCursor() {
+    }
+
+    public static String encode(long... values){
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0){
+                builder.append(SEPARATOR);
+            }
+            builder.append(values[i]);
+        }
+        return Base64.encodeUrlSafe(builder.toString(), StandardCharsets.UTF_8);
+    }
+
+    /*
+    * 解析游标，游标为空时表示第一页，返回空数组
+    * 游标无效(被篡改、长度不符)时返回null
+    * */
+    public static long[] decode(String cursor, int length){
+        if (StrUtil.isBlank(cursor)){
+            return new long[0];
+        }
+        try {
+            String[] parts = Base64.decodeStr(cursor, StandardCharsets.UTF_8).split(SEPARATOR);
+            if (parts.length != length){
+                return null;
+            }
+            long[] values = new long[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = Long.parseLong(parts[i]);
+            }
+            return values;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
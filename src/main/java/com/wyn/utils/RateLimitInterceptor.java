@@ -0,0 +1,88 @@
+package com.wyn.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.wyn.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+* 登录相关接口的限流拦截器：发送验证码按手机号、IP、全局限流，登录按IP、全局限流
+* 登录请求的手机号在请求体中，按手机号的登录次数限制在UserServiceImpl.login中检查
+* 客户端IP取连接的对端地址；只有对端是配置的反向代理时才读取X-Forwarded-For，
+* 从右往左跳过可信代理，第一个不可信的地址即客户端，客户端自己伪造的头部只能出现在更左边
+* */
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    /*发送验证码：每个手机号每分钟1次，每个IP每分钟10次，全局每秒200次*/
+    private static final long CODE_PHONE_PER_MINUTE = 1;
+    private static final long CODE_IP_PER_MINUTE = 10;
+    private static final long CODE_GLOBAL_PER_SECOND = 200;
+
+    /*登录：每个IP每分钟20次，全局每秒500次*/
+    private static final long LOGIN_IP_PER_MINUTE = 20;
+    private static final long LOGIN_GLOBAL_PER_SECOND = 500;
+
+    private RateLimiter rateLimiter;
+
+    /*可信的反向代理地址*/
+    private Set<String> trustedProxies;
+
+    public RateLimitInterceptor(RateLimiter rateLimiter, Collection<String> trustedProxies) {
+        this.rateLimiter = rateLimiter;
+        this.trustedProxies = new HashSet<>(trustedProxies);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //1. 按接口确定限流维度
+        String ip = clientIp(request);
+        List<RateLimiter.Limit> limits = new ArrayList<>(3);
+        if (request.getRequestURI().endsWith("/user/code")){
+            String phone = request.getParameter("phone");
+            if (StrUtil.isNotBlank(phone)){
+                limits.add(RateLimiter.Limit.perMinute("code:phone:" + phone, CODE_PHONE_PER_MINUTE));
+            }
+            limits.add(RateLimiter.Limit.perMinute("code:ip:" + ip, CODE_IP_PER_MINUTE));
+            limits.add(RateLimiter.Limit.perSecond("code:global", CODE_GLOBAL_PER_SECOND));
+        } else {
+            limits.add(RateLimiter.Limit.perMinute("login:ip:" + ip, LOGIN_IP_PER_MINUTE));
+            limits.add(RateLimiter.Limit.perSecond("login:global", LOGIN_GLOBAL_PER_SECOND));
+        }
+        //2. 有令牌则放行
+        if (rateLimiter.tryAcquire(limits)){
+            return true;
+        }
+        //3. 超限，返回429
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求过于频繁，请稍后再试")));
+        return false;
+    }
+
+    private String clientIp(HttpServletRequest request){
+        String remote = request.getRemoteAddr();
+        if (!trustedProxies.contains(remote)){
+            return remote;
+        }
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded)){
+            return remote;
+        }
+        List<String> hops = StrUtil.split(forwarded, ',', true, true);
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            if (!trustedProxies.contains(hops.get(i))){
+                return hops.get(i);
+            }
+        }
+        //全部是可信代理，取最左边的地址
+        return hops.isEmpty() ? remote : hops.get(0);
+    }
+}
@@ -0,0 +1,111 @@
+package com.wyn.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.wyn.utils.RedisConstants.RATE_LIMIT_KEY;
+
+/*
+* 分布式令牌桶限流，一次请求可同时检查多个维度(手机号、IP、全局)，通过一次Lua脚本原子地判断和扣减
+* 每个桶在本地也维护一个同样参数的令牌桶，本节点自身就已超限时直接拒绝，不访问Redis
+* */
+@Component
+public class RateLimiter {
+
+    private static final DefaultRedisScript<Long> RATE_LIMIT_SCRIPT;
+    static {
+        RATE_LIMIT_SCRIPT = new DefaultRedisScript<>();
+        RATE_LIMIT_SCRIPT.setLocation(new ClassPathResource("rate_limit.lua"));
+        RATE_LIMIT_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /*本地令牌桶，长时间未访问的自动清除*/
+    private final Cache<String, LocalBucket> localBuckets = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterAccess(Duration.ofMinutes(10))
+            .build();
+
+    public RateLimiter(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /*全部维度都有令牌时返回true，并各扣减一个令牌*/
+    public boolean tryAcquire(List<Limit> limits){
+        //1. 本地预检查，本节点已超限的直接拒绝；先检查全部维度，都有令牌才扣减，被后面的维度拒绝时不消耗前面维度的令牌
+        List<LocalBucket> buckets = new ArrayList<>(limits.size());
+        for (Limit limit : limits) {
+            LocalBucket bucket = localBuckets.get(limit.getKey(), key -> new LocalBucket(limit.getCapacity()));
+            if (!bucket.hasToken(limit.getCapacity(), limit.getPerSecond())){
+                return false;
+            }
+            buckets.add(bucket);
+        }
+        buckets.forEach(LocalBucket::consume);
+        //2. 一次Lua脚本检查所有维度
+        List<String> keys = new ArrayList<>(limits.size());
+        String[] args = new String[limits.size() * 2];
+        for (int i = 0; i < limits.size(); i++) {
+            Limit limit = limits.get(i);
+            keys.add(RATE_LIMIT_KEY + limit.getKey());
+            args[2 * i] = String.valueOf(limit.getCapacity());
+            args[2 * i + 1] = String.valueOf(limit.getPerSecond());
+        }
+        Long result = stringRedisTemplate.execute(RATE_LIMIT_SCRIPT, keys, (Object[]) args);
+        return result != null && result == 0;
+    }
+
+    /*
+    * 一个限流维度：key为维度标识(如 code:phone:13800000000)，capacity为桶容量，perSecond为每秒补充的令牌数
+    * */
+    @Data
+    @AllArgsConstructor
+    public static class Limit {
+        private String key;
+        private long capacity;
+        private double perSecond;
+
+        /*每分钟最多permits次*/
+        public static Limit perMinute(String key, long permits){
+            return new Limit(key, permits, permits / 60.0);
+        }
+
+        /*每秒最多permits次*/
+        public static Limit perSecond(String key, long permits){
+            return new Limit(key, permits, permits);
+        }
+    }
+
+    private static class LocalBucket {
+        private double tokens;
+        private long updatedAt = System.currentTimeMillis();
+
+        LocalBucket(long capacity) {
+            this.tokens = capacity;
+        }
+
+        /*补充令牌后判断是否还有令牌，不扣减*/
+        synchronized boolean hasToken(long capacity, double perSecond){
+            long now = System.currentTimeMillis();
+            tokens = Math.min(capacity, tokens + (now - updatedAt) * perSecond / 1000);
+            updatedAt = now;
+            return tokens >= 1;
+        }
+
+        /*检查与扣减之间并发的请求可能把令牌扣到1以下，最多扣到0，由Redis中的令牌桶兜底*/
+        synchronized void consume(){
+            tokens = Math.max(0, tokens - 1);
+        }
+    }
+}
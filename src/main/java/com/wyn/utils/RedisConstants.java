@@ -5,12 +5,29 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_USER_KEY = "login:token:";
     public static final Long LOGIN_USER_TTL = 36000L;
+    public static final String LOGIN_INVALIDATE_CHANNEL = "login:invalidate";
+    public static final String LOGIN_REVOKED_KEY = "login:revoked";
+    public static final String LOGIN_REVOKE_CHANNEL = "login:revoke";
+    public static final String RATE_LIMIT_KEY = "rate:limit:";
+    /*每个手机号每分钟最多尝试登录的次数*/
+    public static final long LOGIN_PHONE_PER_MINUTE = 5;
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
 
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String CACHE_REBUILD_LOCK_KEY = "lock:";
+
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
+
+    public static final String CACHE_CDC_LOCK_KEY = "lock:cache:cdc";
+
     public static final Long CACHE_SHOPTYPE_TTL = 30L;
     public static final String CACHE_SHOPTYPE_KEY = "cache:shopType";
 
@@ -19,9 +36,40 @@ public class RedisConstants {
 
 
 
+    public static final String ID_WORKER_KEY = "id:worker:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SHARDS_KEY = "seckill:shards:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_RELOAD_LOCK_KEY = "lock:seckill:reload:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders:";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_GROUP = "g1";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
+    /*按点赞数排序的博客热度排行*/
+    public static final String BLOG_HOT_KEY = "blog:hot";
+    /*点赞数有变化、待写回数据库的博客id*/
+    public static final String BLOG_HOT_DIRTY_KEY = "blog:hot:dirty";
+    /*排行已从数据库完整加载的标记，加载完成前/blog/hot按数据库分页*/
+    public static final String BLOG_HOT_LOADED_KEY = "blog:hot:loaded";
+    public static final String BLOG_LIKED_FLUSH_LOCK_KEY = "lock:blog:liked:flush";
+    /*关注关系在Redis中的镜像：follows:{userId}为关注的人，followers:{userId}为粉丝*/
+    public static final String FOLLOWS_KEY = "follows:";
+    public static final String FOLLOWERS_KEY = "followers:";
+    public static final String FOLLOW_RECONCILE_LOCK_KEY = "lock:follow:reconcile";
+    public static final String FOLLOW_LOADED_KEY = "follow:loaded";
+    public static final String FOLLOW_LOADED_SETS_KEY = "follow:loaded:sets";
+    public static final String FOLLOW_RECONCILED_KEY = "follow:reconciled";
     public static final String FEED_KEY = "feed:";
+    /*粉丝数超过推送阈值的用户，博客只写入自己的发件箱，由粉丝读取时拉取*/
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_USERS_KEY = "feed:big";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    /*加载店铺坐标时每批读取的数量*/
+    public static final int SHOP_GEO_LOAD_BATCH = 1000;
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String SIGN_ARCHIVE_LOCK_KEY = "lock:sign:archive:";
 }
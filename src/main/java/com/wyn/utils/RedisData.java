@@ -8,4 +8,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    /*重建耗时(毫秒)，用于提前刷新，可能为空*/
+    private Long delta;
 }
@@ -1,11 +1,21 @@
 package com.wyn.utils;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Unreal
@@ -14,6 +24,9 @@ import java.time.format.DateTimeFormatter;
 
 /*
 * 通过Redis实现全局自增Id
+* increment模式：每个id执行一次INCR
+* segment模式：每次用INCRBY预留一个号段，在本地依次发放，剩余不多时异步预取下一个号段
+* snowflake模式：启动时租用一个workerId，之后完全在本地生成，见SnowflakeIdGenerator
 * */
 
 @Component
@@ -29,30 +42,157 @@ public class RedisIdWorker {
     * */
     private static final int COUNT_BITS = 32;
 
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    /*
+    * 号段剩余的序列号少于步长的该比例时，开始预取下一个号段
+    * */
+    private static final double PREFETCH_RATIO = 0.2;
+
+    /*预取号段的线程池*/
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor();
+
     private StringRedisTemplate stringRedisTemplate;
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    private final boolean segmentMode;
+
+    private final SnowflakeIdGenerator snowflake;
+
+    private final long segmentStep;
+
+    /*每个业务前缀当天的号段*/
+    private final Map<String, Segment> segments = new ConcurrentHashMap<>();
+
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.mode:increment}") String mode,
+                         @Value("${hmdp.id.segment-step:1000}") long segmentStep) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentMode = "segment".equalsIgnoreCase(mode);
+        this.segmentStep = segmentStep;
+        this.snowflake = "snowflake".equalsIgnoreCase(mode)
+                ? new SnowflakeIdGenerator(stringRedisTemplate, BEGIN_TIMESTAMP) : null;
+    }
+
+    @PostConstruct
+    private void init(){
+        if (snowflake != null){
+            snowflake.start();
+        }
+    }
+
+    @PreDestroy
+    private void destroy(){
+        if (snowflake != null){
+            snowflake.stop();
+        }
     }
 
     public long nextId(String keyPrefix){
+        if (snowflake != null){
+            //snowflake模式的id全局唯一，不区分业务前缀
+            return snowflake.nextId();
+        }
         //1. 生成时间戳
-        /*获取当前时间*/
-        LocalDateTime now = LocalDateTime.now();
-        /*把当前时间转化为秒*/
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        /*获取当前时间，并转化为秒*/
+        long nowSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         /*求得时间差*/
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
         //2. 生成序列号
-        /*获取当前日期，精准到天*/
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        /*自增长*/
-        Long count = stringRedisTemplate.opsForValue().increment("irc:" + keyPrefix + ":" + date);
-
+        /*获取当天的号段，号段中缓存了当天的key，跨天时重新创建*/
+        Segment segment = segmentOf(keyPrefix, Math.floorDiv(nowSecond, SECONDS_PER_DAY));
+        long count = segmentMode
+                ? nextCount(segment)
+                /*自增长*/
+                : stringRedisTemplate.opsForValue().increment(segment.key);
 
         //3. 拼接并返回
         /*通过位运算使时间戳左移COUNT_BITS(32)位，在通过或运算将序列号加到时间戳的后方*/
         return timestamp << COUNT_BITS | count;
     }
+
+    private Segment segmentOf(String keyPrefix, long epochDay){
+        Segment segment = segments.get(keyPrefix);
+        if (segment != null && segment.epochDay == epochDay){
+            return segment;
+        }
+        return segments.compute(keyPrefix, (prefix, old) -> old != null && old.epochDay == epochDay ? old
+                : new Segment(epochDay, "irc:" + prefix + ":" + LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER)));
+    }
+
+    /*从本地号段中取序列号，号段用完时切换到预取好的下一个号段*/
+    private long nextCount(Segment segment){
+        while (true){
+            Range range = segment.range;
+            if (range != null){
+                long count = range.cursor.getAndIncrement();
+                if (count <= range.max){
+                    if (count == range.prefetchAt){
+                        prefetch(segment);
+                    }
+                    return count;
+                }
+            }
+            synchronized (segment){
+                //只有第一个发现号段用完的线程负责切换
+                if (segment.range == range){
+                    segment.range = takeNext(segment);
+                }
+            }
+        }
+    }
+
+    private void prefetch(Segment segment){
+        synchronized (segment){
+            if (segment.next == null){
+                segment.next = CompletableFuture.supplyAsync(() -> allocate(segment.key), SEGMENT_PREFETCH_EXECUTOR);
+            }
+        }
+    }
+
+    /*在持有号段锁时调用*/
+    private Range takeNext(Segment segment){
+        CompletableFuture<Range> next = segment.next;
+        segment.next = null;
+        if (next != null){
+            try {
+                return next.join();
+            } catch (Exception e) {
+                //预取失败，同步重新申请
+            }
+        }
+        return allocate(segment.key);
+    }
+
+    /*INCRBY key step，预留 (max - step, max] 这一段序列号*/
+    private Range allocate(String key){
+        Long max = stringRedisTemplate.opsForValue().increment(key, segmentStep);
+        return new Range(max - segmentStep + 1, max, max - (long) (segmentStep * PREFETCH_RATIO));
+    }
+
+    private static class Segment {
+        final long epochDay;
+        final String key;
+        volatile Range range;
+        CompletableFuture<Range> next;
+
+        Segment(long epochDay, String key) {
+            this.epochDay = epochDay;
+            this.key = key;
+        }
+    }
+
+    private static class Range {
+        final AtomicLong cursor;
+        final long max;
+        final long prefetchAt;
+
+        Range(long min, long max, long prefetchAt) {
+            this.cursor = new AtomicLong(min);
+            this.max = max;
+            this.prefetchAt = prefetchAt;
+        }
+    }
 }
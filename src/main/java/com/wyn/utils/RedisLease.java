@@ -0,0 +1,61 @@
+package com.wyn.utils;
+
+import cn.hutool.core.lang.UUID;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Redis租约：SET key owner NX 并带过期时间获取，续期和释放时先比较持有者，比较与操作在一个脚本中完成，
+* 避免在GET之后、EXPIRE/DEL之前租约过期被其他节点抢到，结果续期或删除了其他节点的租约
+* 每个实例有自己的持有者标识，可以同时持有多个key
+* */
+public class RedisLease {
+
+    /*租约仍属于自己时才续期*/
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+            "return redis.call('pexpire', KEYS[1], ARGV[2]) end " +
+            "return 0", Long.class);
+
+    /*租约仍属于自己时才释放*/
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('get', KEYS[1]) == ARGV[1]) then " +
+            "return redis.call('del', KEYS[1]) end " +
+            "return 0", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /*租约的持有者标识*/
+    private final String owner = UUID.randomUUID().toString(true);
+
+    public RedisLease(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /*租约空闲时获取*/
+    public boolean tryAcquire(String key, long ttl, TimeUnit unit) {
+        Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(key, owner, ttl, unit);
+        return Boolean.TRUE.equals(acquired);
+    }
+
+    /*租约仍属于自己时续期*/
+    public boolean renew(String key, long ttl, TimeUnit unit) {
+        Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                Collections.singletonList(key), owner, String.valueOf(unit.toMillis(ttl)));
+        return renewed != null && renewed == 1;
+    }
+
+    /*获取或续期，返回本节点是否持有租约*/
+    public boolean hold(String key, long ttl, TimeUnit unit) {
+        return tryAcquire(key, ttl, unit) || renew(key, ttl, unit);
+    }
+
+    /*租约仍属于自己时释放*/
+    public boolean release(String key) {
+        Long released = stringRedisTemplate.execute(RELEASE_SCRIPT, Collections.singletonList(key), owner);
+        return released != null && released == 1;
+    }
+}
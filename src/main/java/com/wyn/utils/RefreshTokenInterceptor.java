@@ -1,15 +1,11 @@
 package com.wyn.utils;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.wyn.dto.UserDTO;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.HandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
 
 /**
  * @author Unreal
@@ -18,10 +14,13 @@ import java.util.concurrent.TimeUnit;
 /*刷新用户登录有效时长拦截器(token刷新拦截器)*/
 public class RefreshTokenInterceptor implements HandlerInterceptor {
 
-    private StringRedisTemplate stringRedisTemplate;
+    private TokenSessionCache tokenSessionCache;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
-        this.stringRedisTemplate = stringRedisTemplate;
+    private SignedTokenService signedTokenService;
+
+    public RefreshTokenInterceptor(TokenSessionCache tokenSessionCache, SignedTokenService signedTokenService) {
+        this.tokenSessionCache = tokenSessionCache;
+        this.signedTokenService = signedTokenService;
     }
 
     @Override
@@ -36,23 +35,19 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         if (StrUtil.isBlank(token)){
             return true;
         }
-        //2. 基于token获取Redis中的用户
-        String tokenKey = RedisConstants.LOGIN_USER_KEY + token;
-        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(tokenKey);
+        //2. 基于token获取用户：签名令牌在本地校验；否则优先本地缓存，有效期由后台按间隔批量刷新
+        UserDTO userDTO = signedTokenService.isEnabled()
+                ? signedTokenService.verify(token)
+                : tokenSessionCache.get(token);
 
         //3. 判断用户是否存在
-        if (userMap == null){
+        if (userDTO == null){
             return true;
         }
 
-        //5. 将查询到的Hash数据转换为UserDao对象
-        UserDTO userDTO = BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false);
-
-        //6. 用户存在，保存用户信息到ThreadLocal中
+        //4. 用户存在，保存用户信息到ThreadLocal中
         UserHolder.saveUser(userDTO);
-        //7. 刷新token有效期
-        stringRedisTemplate.expire(tokenKey, RedisConstants.LOGIN_USER_TTL, TimeUnit.SECONDS);
-        //8. 放行
+        //5. 放行
         return true;
 
     }
@@ -0,0 +1,192 @@
+package com.wyn.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* 秒杀准入控制：每张秒杀券在本节点同时进行中的请求数不超过limit，超出的请求短暂排队，超时后快速失败
+* limit按AIMD自适应：请求耗时低于目标时每轮加1，高于目标或出错时乘以0.9
+* 耗时从获得该券的许可开始计算，包括等待本节点许可的时间和Redis脚本的耗时，无论成功失败，慢了就减小
+* 这样Redis连接池饱和前就开始限流，秒杀之外的接口不会被拖垮
+* 每张券的limit之外还有本节点所有券共用的固定上限nodeLimit，只作为多张券同时秒杀时的兜底，
+* maxLimit应小于nodeLimit，单张券秒杀时由自适应的limit限流
+* 各券的准入状态按访问时间过期、按数量淘汰，任意voucherId的请求不会让其无限增长
+* */
+@Component
+public class SeckillAdmissionController {
+
+    /*乘性减小的系数*/
+    private static final double DECREASE_FACTOR = 0.9;
+
+    /*最多保留准入状态的秒杀券数，及无请求后保留的时间*/
+    private static final long MAX_GATES = 10_000;
+    private static final Duration GATE_IDLE = Duration.ofMinutes(10);
+
+    private final double initialLimit;
+    private final double minLimit;
+    private final double maxLimit;
+    private final long targetLatencyNanos;
+    private final long queueTimeoutNanos;
+    private final int maxQueue;
+
+    private final Counter rejectedCounter;
+
+    private final Cache<Long, Gate> gates = Caffeine.newBuilder()
+            .maximumSize(MAX_GATES)
+            .expireAfterAccess(GATE_IDLE)
+            .build();
+
+    /*本节点所有秒杀券共用的许可*/
+    private final Semaphore nodePermits;
+
+    public SeckillAdmissionController(MeterRegistry meterRegistry,
+                                      @Value("${hmdp.seckill.admission.initial-limit:2}") double initialLimit,
+                                      @Value("${hmdp.seckill.admission.min-limit:1}") double minLimit,
+                                      @Value("${hmdp.seckill.admission.max-limit:6}") double maxLimit,
+                                      @Value("${hmdp.seckill.admission.target-latency-ms:20}") long targetLatencyMs,
+                                      @Value("${hmdp.seckill.admission.queue-timeout-ms:50}") long queueTimeoutMs,
+                                      @Value("${hmdp.seckill.admission.max-queue:200}") int maxQueue,
+                                      @Value("${hmdp.seckill.admission.node-limit:8}") int nodeLimit) {
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMs);
+        this.maxQueue = maxQueue;
+        this.nodePermits = new Semaphore(nodeLimit, true);
+        this.rejectedCounter = meterRegistry.counter("seckill.admission.rejected");
+    }
+
+    /*
+    * 获取准入许可，先获取该券的许可，再在剩余的排队时间内获取本节点的许可
+    * 排队超时或排队人数过多时返回null，否则请求结束后调用Permit.release归还
+    * */
+    public Permit tryAcquire(Long voucherId){
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        Gate gate = gates.get(voucherId, id -> new Gate(initialLimit));
+        if (!gate.tryAcquire()){
+            rejectedCounter.increment();
+            return null;
+        }
+        //从这里开始计时，等待本节点许可的时间也计入耗时
+        long admittedAt = System.nanoTime();
+        boolean admitted;
+        try {
+            admitted = nodePermits.tryAcquire(Math.max(0, deadline - admittedAt), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            admitted = false;
+        }
+        if (!admitted){
+            //本节点已满，按超时处理，减小该券的limit
+            gate.release(System.nanoTime() - admittedAt, true);
+            rejectedCounter.increment();
+            return null;
+        }
+        return new Permit(gate, admittedAt);
+    }
+
+    /*该券当前的limit，没有准入状态时返回初始值*/
+    public double limitOf(Long voucherId){
+        Gate gate = gates.getIfPresent(voucherId);
+        return gate == null ? initialLimit : gate.limit();
+    }
+
+    /*准入许可，请求结束后归还一次*/
+    public class Permit {
+        private final Gate gate;
+        private final long admittedAt;
+
+        private Permit(Gate gate, long admittedAt) {
+            this.gate = gate;
+            this.admittedAt = admittedAt;
+        }
+
+        /*归还许可，并按请求耗时调整该券的limit，failed为是否出错*/
+        public void release(boolean failed){
+            nodePermits.release();
+            gate.release(System.nanoTime() - admittedAt, failed);
+        }
+    }
+
+    private class Gate {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private double limit;
+        private int inFlight;
+        private int waiting;
+
+        Gate(double limit) {
+            this.limit = limit;
+        }
+
+        boolean tryAcquire(){
+            lock.lock();
+            try {
+                if (inFlight < (int) limit){
+                    inFlight++;
+                    return true;
+                }
+                //排队人数过多，直接拒绝
+                if (waiting >= maxQueue){
+                    return false;
+                }
+                waiting++;
+                try {
+                    long remaining = queueTimeoutNanos;
+                    while (inFlight >= (int) limit){
+                        if (remaining <= 0){
+                            return false;
+                        }
+                        remaining = available.awaitNanos(remaining);
+                    }
+                    inFlight++;
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    waiting--;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        double limit(){
+            lock.lock();
+            try {
+                return limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long latencyNanos, boolean failed){
+            lock.lock();
+            try {
+                inFlight--;
+                if (failed || latencyNanos > targetLatencyNanos){
+                    //乘性减小
+                    limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+                } else {
+                    //加性增大，每放行约limit个请求加1
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+                available.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.wyn.utils;
+
+import static com.wyn.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/*
+ * 秒杀库存相关的key
+ * 不分片时沿用 seckill:stock:{voucherId}、seckill:order:{voucherId}，订单按userId进入对应分区的Stream；
+ * 分片时第shard个分片对应第shard个订单分区，为 seckill:stock:{stream.orders:shard}:voucherId 等，
+ * 花括号内是hash tag，与该分区的Stream key(stream.orders:shard)落在同一个slot，
+ * 同一分片的库存、订单集合、秒杀时间和订单消息在一个脚本中读写，在Redis Cluster上不会CROSSSLOT
+ * 因此分片数不能超过订单分区数
+ * */
+public class SeckillKeys {
+
+    public static String stockKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + shardTag(shard) + voucherId;
+    }
+
+    public static String orderKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + shardTag(shard) + voucherId;
+    }
+
+    /*秒杀开始、结束时间，每个分片保存一份，与该分片的库存在同一个slot*/
+    public static String windowKey(Long voucherId, int shard, int shards) {
+        return shards <= 1 ? SECKILL_WINDOW_KEY + voucherId : SECKILL_WINDOW_KEY + shardTag(shard) + voucherId;
+    }
+
+    /*分片对应的订单分区Stream*/
+    public static String streamKey(int shard) {
+        return SECKILL_ORDER_STREAM_KEY + shard;
+    }
+
+    /*用户所在的分片*/
+    public static int shardOf(Long userId, int shards) {
+        return shards <= 1 ? 0 : (int) Math.floorMod(userId, (long) shards);
+    }
+
+    private static String shardTag(int shard) {
+        return "{" + streamKey(shard) + "}:";
+    }
+}
@@ -0,0 +1,169 @@
+package com.wyn.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.wyn.entity.Sign;
+import com.wyn.mapper.SignMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.wyn.utils.RedisConstants.SIGN_ARCHIVE_LOCK_KEY;
+import static com.wyn.utils.RedisConstants.USER_SIGN_KEY;
+
+/*
+* 签到归档：每天定时把前一天所在月份的签到bitmap写入tb_sign，每个用户每月一行(4字节)
+* SCAN sign:*:yyyyMM，每批一次pipeline读取 BITFIELD GET u32 0，再一条多行upsert写入
+* 月份结束后的归档完成时给该月的bitmap设置过期时间，之后查询往月签到读取tb_sign
+* 每天只有抢到当天租约的一个节点执行
+* */
+@Slf4j
+@Component
+public class SignArchiver {
+
+    private static final DateTimeFormatter MONTH_FORMATTER = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SignMapper signMapper;
+
+    /*每天执行归档的时间*/
+    @Value("${hmdp.sign.archive-at:03:00}")
+    private String archiveAt;
+
+    /*每批归档的用户数*/
+    @Value("${hmdp.sign.archive-batch:500}")
+    private int archiveBatch;
+
+    /*月份结束后bitmap继续保留的天数，用于跨月计算连续签到*/
+    @Value("${hmdp.sign.retention-days:40}")
+    private long retentionDays;
+
+    private final String owner = UUID.randomUUID().toString(true);
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init(){
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime next = LocalDate.now().atTime(LocalTime.parse(archiveAt));
+        if (!next.isAfter(now)){
+            next = next.plusDays(1);
+        }
+        executor.scheduleAtFixedRate(this::archive, Duration.between(now, next).toMillis(),
+                TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        executor.shutdownNow();
+    }
+
+    private void archive(){
+        try {
+            //1. 每天只有一个节点执行，租约不释放，到期前其他节点不会重复执行
+            LocalDate yesterday = LocalDate.now().minusDays(1);
+            Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(
+                    SIGN_ARCHIVE_LOCK_KEY + LocalDate.now().format(DATE_FORMATTER), owner, 23, TimeUnit.HOURS);
+            if (!Boolean.TRUE.equals(acquired)){
+                return;
+            }
+            //2. 归档昨天所在的月份，该月已结束时同时设置过期时间
+            long begin = System.currentTimeMillis();
+            boolean monthEnded = yesterday.getDayOfMonth() == yesterday.lengthOfMonth();
+            long count = archiveMonth(yesterday, monthEnded);
+            log.info("签到归档完成，月份{}，用户{}个，耗时{}ms",
+                    yesterday.format(MONTH_FORMATTER), count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("签到归档失败", e);
+        }
+    }
+
+    private long archiveMonth(LocalDate date, boolean expire){
+        String suffix = ":" + date.format(MONTH_FORMATTER);
+        ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*" + suffix).count(archiveBatch).build();
+        long count = 0;
+        try (Cursor<byte[]> cursor = stringRedisTemplate.execute(
+                (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+            List<String> keys = new ArrayList<>(archiveBatch);
+            while (cursor != null && cursor.hasNext()){
+                keys.add(new String(cursor.next(), StandardCharsets.UTF_8));
+                if (keys.size() >= archiveBatch){
+                    count += archiveBatch(keys, date, suffix, expire);
+                    keys.clear();
+                }
+            }
+            if (!keys.isEmpty()){
+                count += archiveBatch(keys, date, suffix, expire);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("扫描签到记录失败", e);
+        }
+        return count;
+    }
+
+    private int archiveBatch(List<String> keys, LocalDate date, String suffix, boolean expire){
+        //1. 一次pipeline读取每个key的32个bit
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String key : keys) {
+                stringConnection.bitfield(key, BitFieldSubCommands.create()
+                        .get(BitFieldSubCommands.BitFieldType.unsigned(32)).valueAt(0));
+            }
+            return null;
+        });
+        //2. key中解析出用户id，组装为归档记录
+        List<Sign> signs = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            Object value = values.get(i);
+            if (!(value instanceof List) || ((List<?>) value).isEmpty() || ((List<?>) value).get(0) == null){
+                continue;
+            }
+            signs.add(new Sign()
+                    .setUserId(Long.valueOf(key.substring(USER_SIGN_KEY.length(), key.length() - suffix.length())))
+                    .setYear(date.getYear())
+                    .setMonth(date.getMonthValue())
+                    .setBits(((Number) ((List<?>) value).get(0)).longValue()));
+        }
+        //3. 一条多行upsert写入
+        if (!signs.isEmpty()){
+            signMapper.upsertBatch(signs);
+        }
+        //4. 月份已结束，保留一段时间后过期
+        if (expire){
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (String key : keys) {
+                    stringConnection.expire(key, TimeUnit.DAYS.toSeconds(retentionDays));
+                }
+                return null;
+            });
+        }
+        return signs.size();
+    }
+}
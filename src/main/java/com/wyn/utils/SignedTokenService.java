@@ -0,0 +1,216 @@
+package com.wyn.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.wyn.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.wyn.utils.RedisConstants.*;
+
+/*
+* 无状态登录令牌：hmdp.login.mode为signed时启用
+* 令牌 = base64url(载荷) + "." + base64url(HMAC-SHA256(载荷))，载荷为 令牌id、过期时间、用户id、昵称、头像
+* 校验只需本地计算签名，不访问Redis；令牌有效期固定为LOGIN_USER_TTL，不再随请求延长
+* 登出的令牌id写入Redis的吊销ZSET(score为过期时间)，各节点用本地布隆过滤器判断，命中时再到Redis确认
+* */
+@Slf4j
+@Component
+public class SignedTokenService {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /*本地吊销布隆过滤器的容量和误判率，定期按Redis中未过期的吊销记录重建*/
+    private static final long REVOKED_EXPECTED = 100_000;
+    private static final double REVOKED_FPP = 0.001;
+    private static final long REBUILD_INTERVAL_MINUTES = 60;
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private final boolean enabled;
+
+    private final SecretKeySpec key;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final ThreadLocal<Mac> macs;
+
+    private volatile BloomFilter revoked = new BloomFilter(REVOKED_EXPECTED, REVOKED_FPP);
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public SignedTokenService(StringRedisTemplate stringRedisTemplate,
+                              RedisMessageListenerContainer redisMessageListenerContainer,
+                              @Value("${hmdp.login.mode:redis}") String mode,
+                              @Value("${hmdp.login.token-secret:}") String secret) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.enabled = "signed".equalsIgnoreCase(mode);
+        if (enabled && StrUtil.isBlank(secret)){
+            throw new IllegalStateException("hmdp.login.mode为signed时必须配置hmdp.login.token-secret");
+        }
+        this.key = enabled ? new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM) : null;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    @PostConstruct
+    private void init(){
+        if (!enabled){
+            return;
+        }
+        //其他节点吊销令牌时，加入本节点的布隆过滤器
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> revoked.put(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_REVOKE_CHANNEL));
+        rebuildRevoked();
+        rebuildExecutor.scheduleWithFixedDelay(this::rebuildRevoked,
+                REBUILD_INTERVAL_MINUTES, REBUILD_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        rebuildExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled(){
+        return enabled;
+    }
+
+    /*签发令牌*/
+    public String issue(UserDTO user){
+        long expireAt = System.currentTimeMillis() / 1000 + LOGIN_USER_TTL;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(random.nextLong());
+            out.writeLong(expireAt);
+            out.writeLong(user.getId());
+            out.writeUTF(StrUtil.nullToEmpty(user.getNickName()));
+            out.writeUTF(StrUtil.nullToEmpty(user.getIcon()));
+        } catch (IOException e) {
+            throw new IllegalStateException("生成令牌失败", e);
+        }
+        byte[] payload = bytes.toByteArray();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    /*校验令牌，签名错误、已过期或已吊销时返回null*/
+    public UserDTO verify(String token){
+        Claims claims = parse(token);
+        if (claims == null || claims.expireAt <= System.currentTimeMillis() / 1000){
+            return null;
+        }
+        //布隆过滤器判断可能已吊销时，再到Redis确认
+        String tokenId = Long.toString(claims.tokenId);
+        if (revoked.mightContain(tokenId)
+                && stringRedisTemplate.opsForZSet().score(LOGIN_REVOKED_KEY, tokenId) != null){
+            return null;
+        }
+        return claims.user;
+    }
+
+    /*吊销令牌，只需保留到令牌本身过期*/
+    public void revoke(String token){
+        Claims claims = parse(token);
+        if (claims == null){
+            return;
+        }
+        String tokenId = Long.toString(claims.tokenId);
+        stringRedisTemplate.opsForZSet().add(LOGIN_REVOKED_KEY, tokenId, claims.expireAt);
+        revoked.put(tokenId);
+        stringRedisTemplate.convertAndSend(LOGIN_REVOKE_CHANNEL, tokenId);
+    }
+
+    private Claims parse(String token){
+        int dot = token.indexOf('.');
+        if (dot <= 0){
+            return null;
+        }
+        try {
+            byte[] payload = DECODER.decode(token.substring(0, dot));
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            //常量时间比较签名
+            if (!MessageDigest.isEqual(sign(payload), signature)){
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            Claims claims = new Claims();
+            claims.tokenId = in.readLong();
+            claims.expireAt = in.readLong();
+            UserDTO user = new UserDTO();
+            user.setId(in.readLong());
+            user.setNickName(StrUtil.emptyToNull(in.readUTF()));
+            user.setIcon(StrUtil.emptyToNull(in.readUTF()));
+            claims.user = user;
+            return claims;
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    /*清理已过期的吊销记录，并按剩余记录重建布隆过滤器*/
+    private void rebuildRevoked(){
+        try {
+            stringRedisTemplate.opsForZSet().removeRangeByScore(LOGIN_REVOKED_KEY, 0, System.currentTimeMillis() / 1000);
+            Set<String> tokenIds = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+            BloomFilter filter = new BloomFilter(Math.max(REVOKED_EXPECTED, tokenIds == null ? 0 : tokenIds.size() * 2L), REVOKED_FPP);
+            if (tokenIds != null){
+                tokenIds.forEach(filter::put);
+            }
+            revoked = filter;
+            //重建期间通过发布订阅收到的吊销进入了旧过滤器，吊销时先写ZSET再广播，替换后再读一次补齐
+            Set<String> latest = stringRedisTemplate.opsForZSet().range(LOGIN_REVOKED_KEY, 0, -1);
+            if (latest != null){
+                latest.forEach(filter::put);
+            }
+        } catch (Exception e) {
+            log.error("重建令牌吊销过滤器失败", e);
+        }
+    }
+
+    private byte[] sign(byte[] payload){
+        return macs.get().doFinal(payload);
+    }
+
+    private Mac newMac(){
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("初始化令牌签名失败", e);
+        }
+    }
+
+    private static class Claims {
+        long tokenId;
+        long expireAt;
+        UserDTO user;
+    }
+}
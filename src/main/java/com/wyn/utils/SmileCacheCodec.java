@@ -0,0 +1,78 @@
+package com.wyn.utils;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import lombok.Data;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/*
+* 基于Jackson Smile的二进制编解码
+* 字段名在同一个值内只写一次，数字和时间按二进制写入，体积和解析开销都比JSON小
+* */
+public class SmileCacheCodec implements CacheCodec {
+
+    private final ObjectMapper mapper;
+
+    public SmileCacheCodec() {
+        SmileFactory factory = new SmileFactory();
+        factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        this.mapper = new ObjectMapper(factory)
+                .registerModule(new JavaTimeModule())
+                .enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存序列化失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return read(bytes, mapper.constructType(type));
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        return read(bytes, mapper.getTypeFactory().constructCollectionType(List.class, elementType));
+    }
+
+    @Override
+    public <T> RedisData decodeLogical(byte[] bytes, Class<T> type) {
+        //按带泛型的结构一次解析出data的真实类型
+        LogicalEntry<T> entry = read(bytes, mapper.getTypeFactory().constructParametricType(LogicalEntry.class, type));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(entry.getExpireTime());
+        redisData.setData(entry.getData());
+        redisData.setDelta(entry.getDelta());
+        return redisData;
+    }
+
+    private <T> T read(byte[] bytes, JavaType type) {
+        try {
+            return mapper.readValue(bytes, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存反序列化失败", e);
+        }
+    }
+
+    /*与RedisData字段相同，只用于解码*/
+    @Data
+    private static class LogicalEntry<T> {
+        private LocalDateTime expireTime;
+        private T data;
+        private Long delta;
+    }
+}
@@ -0,0 +1,168 @@
+package com.wyn.utils;
+
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.wyn.utils.RedisConstants.ID_WORKER_KEY;
+
+/*
+* 本地生成全局唯一Id，发号时不访问Redis
+* 高32位与RedisIdWorker相同，为相对BEGIN_TIMESTAMP的秒数；低32位为 workerId(10位) + 每秒序列号(22位)
+* workerId启动时通过Redis租约获得(SET NX EX)，后台定时续期，租约丢失时重新申请
+* */
+@Slf4j
+public class SnowflakeIdGenerator {
+
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int MAX_WORKER_ID = (1 << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    /*租约有效期及续期间隔(秒)*/
+    private static final long LEASE_TTL = 60;
+    private static final long HEARTBEAT_INTERVAL = 20;
+
+    /*可容忍的时钟回拨(秒)，回拨不超过该值时沿用上一秒继续发号，超过则拒绝发号*/
+    private static final long MAX_BACKWARD_SECONDS = 5;
+
+    private final long beginTimestamp;
+
+    /*workerId租约*/
+    private final RedisLease lease;
+
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    private int workerId = -1;
+
+    /*租约到期前必须续期成功，否则不再用当前workerId发号*/
+    private long leaseDeadline;
+
+    private long lastSecond = -1;
+
+    private long sequence;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, long beginTimestamp) {
+        this.beginTimestamp = beginTimestamp;
+        this.lease = new RedisLease(stringRedisTemplate);
+    }
+
+    public synchronized void start() {
+        acquireLease();
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /*
+    * 只停止续期，不删除租约：租约在LEASE_TTL后自然过期，之后其他节点才能接手同一个workerId，
+    * 这段时间远大于可容忍的时钟回拨，接手的节点不会在本节点已经用过的秒内发号
+    * */
+    public void stop() {
+        heartbeatExecutor.shutdownNow();
+    }
+
+    public synchronized long nextId() {
+        //1. 租约过期(例如长时间GC)，先续期再发号，避免与新持有者重复
+        if (System.currentTimeMillis() > leaseDeadline) {
+            renewOrReacquire();
+        }
+        //2. 处理时钟回拨
+        long now = currentSecond();
+        if (now < lastSecond) {
+            if (lastSecond - now > MAX_BACKWARD_SECONDS) {
+                throw new IllegalStateException("时钟回拨" + (lastSecond - now) + "秒，拒绝生成id");
+            }
+            now = lastSecond;
+        }
+        //3. 同一秒内序列号自增，用完后等到下一秒
+        if (now == lastSecond) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitNextSecond(lastSecond);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastSecond = now;
+        //4. 拼接：时间戳 | workerId | 序列号
+        return (now - beginTimestamp) << (WORKER_BITS + SEQUENCE_BITS)
+                | (long) workerId << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private static long currentSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    private static long waitNextSecond(long lastSecond) {
+        long now = currentSecond();
+        while (now <= lastSecond) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待下一秒时被中断", e);
+            }
+            now = currentSecond();
+        }
+        return now;
+    }
+
+    /*续期在锁外进行，不阻塞发号*/
+    private void heartbeat() {
+        try {
+            int current;
+            synchronized (this) {
+                current = workerId;
+            }
+            boolean renewed = renew(current);
+            synchronized (this) {
+                if (workerId != current) {
+                    return;
+                }
+                if (renewed) {
+                    leaseDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_TTL - HEARTBEAT_INTERVAL);
+                } else {
+                    log.warn("workerId租约已丢失，重新申请，workerId={}", workerId);
+                    acquireLease();
+                }
+            }
+        } catch (Exception e) {
+            log.error("workerId租约续期失败，workerId=" + workerId, e);
+        }
+    }
+
+    /*续期当前租约，租约已被他人占用时重新申请一个workerId*/
+    private void renewOrReacquire() {
+        if (renew(workerId)) {
+            leaseDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_TTL - HEARTBEAT_INTERVAL);
+            return;
+        }
+        log.warn("workerId租约已丢失，重新申请，workerId={}", workerId);
+        acquireLease();
+    }
+
+    private boolean renew(int id) {
+        return lease.renew(ID_WORKER_KEY + id, LEASE_TTL, TimeUnit.SECONDS);
+    }
+
+    /*从随机位置开始依次尝试 SET id:worker:{n} owner NX EX ttl*/
+    private void acquireLease() {
+        int start = RandomUtil.randomInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int candidate = (start + i) & MAX_WORKER_ID;
+            if (lease.tryAcquire(ID_WORKER_KEY + candidate, LEASE_TTL, TimeUnit.SECONDS)) {
+                workerId = candidate;
+                leaseDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(LEASE_TTL - HEARTBEAT_INTERVAL);
+                log.info("获取workerId租约成功，workerId={}", workerId);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有可用的workerId");
+    }
+}
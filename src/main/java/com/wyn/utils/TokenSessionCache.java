@@ -0,0 +1,141 @@
+package com.wyn.utils;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.wyn.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.wyn.utils.RedisConstants.*;
+
+/*
+* 登录会话的本地缓存，避免每个请求都HGETALL + EXPIRE
+* 本地只缓存很短的时间；token有效期的刷新每个token最多每refreshInterval一次，后台定时用pipeline批量EXPIRE
+* 登出时删除Redis中的会话，并通过发布订阅通知各节点清除本地缓存
+* */
+@Slf4j
+@Component
+public class TokenSessionCache {
+
+    /*本地缓存中表示"token不存在"的会话*/
+    private static final Session ABSENT = new Session(null);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Cache<String, Session> sessions;
+
+    /*
+    * 每个token最近一次登记刷新有效期的时间，条目在refreshInterval后过期，过期后才会再次刷新
+    * 与本地会话分开保存：会话每localTtl就重新从Redis加载，刷新记录不能随会话一起丢失
+    * */
+    private final Cache<String, Long> lastRefresh;
+
+    /*等待批量刷新有效期的token*/
+    private final Set<String> pendingRefresh = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    public TokenSessionCache(StringRedisTemplate stringRedisTemplate,
+                             RedisMessageListenerContainer redisMessageListenerContainer,
+                             @Value("${hmdp.login.local-ttl-seconds:10}") long localTtlSeconds,
+                             @Value("${hmdp.login.local-maximum-size:100000}") long localMaximumSize,
+                             @Value("${hmdp.login.refresh-interval-seconds:60}") long refreshIntervalSeconds) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.sessions = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(Duration.ofSeconds(localTtlSeconds))
+                .build();
+        this.lastRefresh = Caffeine.newBuilder()
+                .maximumSize(localMaximumSize)
+                .expireAfterWrite(Duration.ofSeconds(refreshIntervalSeconds))
+                .build();
+        //其他节点登出时，清除本节点的缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> sessions.invalidate(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(LOGIN_INVALIDATE_CHANNEL));
+        refreshExecutor.scheduleWithFixedDelay(this::flushRefresh, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        refreshExecutor.shutdownNow();
+    }
+
+    /*根据token获取登录用户，不存在时返回null；会话存在时按间隔刷新有效期*/
+    public UserDTO get(String token){
+        //1. 先查本地缓存，未命中再查Redis
+        Session session = sessions.get(token, this::load);
+        if (session == ABSENT){
+            return null;
+        }
+        //2. 间隔内没有刷新过，登记批量刷新
+        if (lastRefresh.asMap().putIfAbsent(token, System.currentTimeMillis()) == null){
+            pendingRefresh.add(token);
+        }
+        return session.user;
+    }
+
+    /*登出：删除Redis中的会话并通知各节点*/
+    public void invalidate(String token){
+        stringRedisTemplate.delete(LOGIN_USER_KEY + token);
+        pendingRefresh.remove(token);
+        lastRefresh.invalidate(token);
+        sessions.invalidate(token);
+        stringRedisTemplate.convertAndSend(LOGIN_INVALIDATE_CHANNEL, token);
+    }
+
+    private Session load(String token){
+        Map<Object, Object> userMap = stringRedisTemplate.opsForHash().entries(LOGIN_USER_KEY + token);
+        //token不存在时HGETALL返回空Map
+        if (userMap.isEmpty()){
+            return ABSENT;
+        }
+        return new Session(BeanUtil.fillBeanWithMap(userMap, new UserDTO(), false));
+    }
+
+    private void flushRefresh(){
+        if (pendingRefresh.isEmpty()){
+            return;
+        }
+        List<String> tokens = new ArrayList<>(pendingRefresh);
+        pendingRefresh.removeAll(tokens);
+        try {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (String token : tokens) {
+                    stringConnection.expire(LOGIN_USER_KEY + token, LOGIN_USER_TTL);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.error("批量刷新token有效期失败，数量={}", tokens.size(), e);
+        }
+    }
+
+    private static class Session {
+        final UserDTO user;
+
+        Session(UserDTO user) {
+            this.user = user;
+        }
+    }
+}
@@ -28,11 +28,13 @@ CREATE TABLE `tb_blog`  (
   `title` varchar(255) CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci NOT NULL COMMENT '标题',
   `images` varchar(2048) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '探店的照片，最多9张，多张以\",\"隔开',
   `content` varchar(2048) CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci NOT NULL COMMENT '探店的文字描述',
-  `liked` int(8) UNSIGNED NULL DEFAULT 0 COMMENT '点赞数量',
+  `liked` int(8) UNSIGNED NOT NULL DEFAULT 0 COMMENT '点赞数量',
   `comments` int(8) UNSIGNED NULL DEFAULT NULL COMMENT '评论数量',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_user_id`(`user_id`, `id`) USING BTREE,
+  INDEX `idx_liked`(`liked`, `id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 23 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -74,7 +76,9 @@ CREATE TABLE `tb_follow`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `follow_user_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的用户id',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_follow`(`user_id`, `follow_user_id`) USING BTREE,
+  INDEX `idx_follow_user`(`follow_user_id`, `user_id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -120,7 +124,7 @@ CREATE TABLE `tb_shop`  (
   `create_time` timestamp NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `update_time` timestamp NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   PRIMARY KEY (`id`) USING BTREE,
-  INDEX `foreign_key_type`(`type_id`) USING BTREE
+  INDEX `idx_type_id`(`type_id`, `id`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 15 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -178,9 +182,9 @@ CREATE TABLE `tb_sign`  (
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '用户id',
   `year` year NOT NULL COMMENT '签到的年',
   `month` tinyint(2) NOT NULL COMMENT '签到的月',
-  `date` date NOT NULL COMMENT '签到的日期',
-  `is_backup` tinyint(1) UNSIGNED NULL DEFAULT NULL COMMENT '是否补签',
-  PRIMARY KEY (`id`) USING BTREE
+  `bits` int(10) UNSIGNED NOT NULL DEFAULT 0 COMMENT '当月的签到记录，从最高位起第n位表示第n天，由Redis中的bitmap归档',
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_month`(`user_id`, `year`, `month`) USING BTREE
 ) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -1274,11 +1278,47 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  INDEX `idx_voucher_user`(`voucher_id`, `user_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_change
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_change`;
+CREATE TABLE `tb_cache_change`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `table_name` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '发生变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '发生变更的行的主键',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '变更时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
+-- ----------------------------
+-- Triggers for tb_cache_change
+-- 被缓存的表发生任何写入时记录一条变更，由CacheChangeTailer读取后删除对应缓存
+-- ----------------------------
+DROP TRIGGER IF EXISTS `trg_shop_insert`;
+CREATE TRIGGER `trg_shop_insert` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_update`;
+CREATE TRIGGER `trg_shop_update` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_delete`;
+CREATE TRIGGER `trg_shop_delete` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop', OLD.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_type_insert`;
+CREATE TRIGGER `trg_shop_type_insert` AFTER INSERT ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop_type', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_type_update`;
+CREATE TRIGGER `trg_shop_type_update` AFTER UPDATE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop_type', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_shop_type_delete`;
+CREATE TRIGGER `trg_shop_type_delete` AFTER DELETE ON `tb_shop_type` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_shop_type', OLD.`id`);
+DROP TRIGGER IF EXISTS `trg_user_insert`;
+CREATE TRIGGER `trg_user_insert` AFTER INSERT ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_user', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_user_update`;
+CREATE TRIGGER `trg_user_update` AFTER UPDATE ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_user', NEW.`id`);
+DROP TRIGGER IF EXISTS `trg_user_delete`;
+CREATE TRIGGER `trg_user_delete` AFTER DELETE ON `tb_user` FOR EACH ROW INSERT INTO `tb_cache_change`(`table_name`, `row_id`) VALUES ('tb_user', OLD.`id`);
+
 SET FOREIGN_KEY_CHECKS = 1;
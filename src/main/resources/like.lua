@@ -0,0 +1,26 @@
+--点赞/取消点赞，同一用户重复调用时切换状态
+--1.参数列表
+--1.1 KEYS[1] 博客的点赞用户集合，KEYS[2] 全局热度排行(zset，score为点赞数)，KEYS[3] 待写回数据库的博客id集合
+--1.2 ARGV[1] 用户id，ARGV[2] 博客id，ARGV[3] 数据库中的点赞数(排行中还没有该博客时用于初始化，可不传)
+
+--2.脚本业务
+--2.1 排行中没有该博客，需要先用数据库中的点赞数初始化
+if (redis.call('zscore', KEYS[2], ARGV[2]) == false) then
+    if (ARGV[3] == nil) then
+        --返回0，由调用方查询数据库后带上点赞数重试
+        return 0
+    end
+    redis.call('zadd', KEYS[2], ARGV[3], ARGV[2])
+end
+--2.2 已点赞则取消，否则点赞
+local delta = 1
+if (redis.call('sismember', KEYS[1], ARGV[1]) == 1) then
+    redis.call('srem', KEYS[1], ARGV[1])
+    delta = -1
+else
+    redis.call('sadd', KEYS[1], ARGV[1])
+end
+--2.3 更新排行，并标记为待写回
+redis.call('zincrby', KEYS[2], delta, ARGV[2])
+redis.call('sadd', KEYS[3], ARGV[2])
+return delta
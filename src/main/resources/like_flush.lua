@@ -0,0 +1,17 @@
+--取出一批待写回的博客及其当前点赞数
+--1.参数列表
+--1.1 KEYS[1] 待写回数据库的博客id集合，KEYS[2] 全局热度排行
+--1.2 ARGV[1] 本批最多取出的数量
+
+--2.脚本业务
+local ids = redis.call('spop', KEYS[1], ARGV[1])
+local result = {}
+for i = 1, #ids do
+    local score = redis.call('zscore', KEYS[2], ids[i])
+    if (score ~= false) then
+        result[#result + 1] = ids[i]
+        result[#result + 1] = score
+    end
+end
+--返回 id1, 点赞数1, id2, 点赞数2 ...
+return result
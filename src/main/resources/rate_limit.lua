@@ -0,0 +1,35 @@
+--令牌桶限流，一次检查多个桶，全部有令牌时才同时扣减
+--1.参数列表
+--1.1 KEYS[i] 第i个桶的key(hash，tokens为剩余令牌数，ts为上次更新的毫秒时间戳)
+--1.2 ARGV[2i-1] 第i个桶的容量，ARGV[2i] 第i个桶每秒补充的令牌数
+
+--2.脚本业务
+--2.1 以Redis服务器时间为准
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+--2.2 计算每个桶当前的令牌数，有一个不足就拒绝
+local tokens = {}
+for i = 1, #KEYS do
+    local capacity = tonumber(ARGV[2 * i - 1])
+    local rate = tonumber(ARGV[2 * i])
+    local bucket = redis.call('hmget', KEYS[i], 'tokens', 'ts')
+    local current = tonumber(bucket[1])
+    if (current == nil) then
+        current = capacity
+    else
+        current = math.min(capacity, current + (now - tonumber(bucket[2])) * rate / 1000)
+    end
+    if (current < 1) then
+        --第i个桶令牌不足，返回i
+        return i
+    end
+    tokens[i] = current
+end
+--2.3 全部充足，各扣减一个令牌，桶在补满所需的时间后过期
+for i = 1, #KEYS do
+    local capacity = tonumber(ARGV[2 * i - 1])
+    local rate = tonumber(ARGV[2 * i])
+    redis.call('hmset', KEYS[i], 'tokens', tokens[i] - 1, 'ts', now)
+    redis.call('pexpire', KEYS[i], math.ceil(capacity / rate * 1000) + 1000)
+end
+return 0
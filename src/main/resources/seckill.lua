@@ -1,28 +1,51 @@
 --1.参数列表
---1.1 优惠券id
+--1.1 库存key(开启分片时为用户所在分片的库存key)
+local stockKey = KEYS[1]
+--1.2 订单key(已下单的用户集合，与库存key同一分片)
+local orderKey = KEYS[2]
+--1.3 订单消息队列key(不分片时为该用户所在分区的Stream，分片时为分片对应分区的Stream，与库存key同一个slot)
+local streamKey = KEYS[3]
+--1.4 秒杀时间key(hash，begin/end为开始/结束时间的毫秒时间戳，与库存key同一分片)
+local windowKey = KEYS[4]
+--1.5 优惠券id
 local voucherId = ARGV[1]
---1.2 用户id
+--1.6 用户id
 local userId = ARGV[2]
+--1.7 订单id
+local orderId = ARGV[3]
 
---2.数据key
---2.1 库存key
-local  stockKey = 'seckill:stock:' .. voucherId
---2.2 订单key
-local  orderKey = 'seckill:order:' .. voucherId
-
---3.脚本业务
---3.1 判断库存是否充足 get stockKey
-if (tonumber(redis.call('get',stockKey)) <= 0) then
-    --库存不足，返回1
-    return 1
+--2.脚本业务
+--2.1 判断秒杀是否开始、是否结束，以Redis服务器时间为准
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (window[1] and now < tonumber(window[1])) then
+    --秒杀尚未开始，返回3
+    return 3
+end
+if (window[2] and now > tonumber(window[2])) then
+    --秒杀已经结束，返回4
+    return 4
 end
---3.2 判断用户是否下单
+--2.2 判断用户是否下单 sismember orderKey userId
 if (redis.call('sismember',orderKey, userId) == 1 ) then
     --存在，说明是重复下单，返回2
     return 2
 end
---3.3 扣库存 incrby stockKey -1
+--2.3 判断库存是否充足 get stockKey
+local stock = tonumber(redis.call('get',stockKey))
+if (stock == nil) then
+    --库存尚未加载到Redis，返回5
+    return 5
+end
+if (stock <= 0) then
+    --库存不足，返回1
+    return 1
+end
+--2.4 扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
---3.4 下单(保存用户) sadd orderKey userId
+--2.5 下单(保存用户) sadd orderKey userId
 redis.call('sadd', orderKey, userId)
-return 0
\ No newline at end of file
+--2.6 发送订单消息到Stream中 xadd streamKey * userId voucherId id
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 0
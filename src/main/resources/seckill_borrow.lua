@@ -0,0 +1,23 @@
+--用户所在分片已空，从兄弟分片借一个库存，扣减库存和发送订单消息在同一个脚本中完成，不会出现借出后丢失的库存
+--兄弟分片的库存key与它对应分区的Stream带相同的hash tag，在同一个slot
+--1.参数列表
+--1.1 兄弟分片的库存key
+local stockKey = KEYS[1]
+--1.2 兄弟分片对应分区的订单消息队列key
+local streamKey = KEYS[2]
+--1.3 优惠券id
+local voucherId = ARGV[1]
+--1.4 用户id
+local userId = ARGV[2]
+--1.5 订单id
+local orderId = ARGV[3]
+
+--2.脚本业务
+local stock = tonumber(redis.call('get', stockKey))
+if (stock == nil or stock <= 0) then
+    --库存不够，返回0
+    return 0
+end
+redis.call('incrby', stockKey, -1)
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+return 1
@@ -1,20 +1,73 @@
 package com.wyn;
 
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.wyn.dto.UserDTO;
 import com.wyn.entity.Shop;
+import com.wyn.entity.ShopType;
+import com.wyn.entity.Voucher;
+import com.wyn.entity.VoucherOrder;
+import com.wyn.service.ISeckillVoucherService;
+import com.wyn.service.IShopTypeService;
+import com.wyn.service.IVoucherOrderService;
+import com.wyn.service.IVoucherService;
 import com.wyn.service.impl.ShopServiceImpl;
 import com.wyn.utils.CaCheClient;
+import com.wyn.utils.CacheCodec;
+import com.wyn.utils.JsonCacheCodec;
+import com.wyn.utils.RedisData;
 import com.wyn.utils.RedisIdWorker;
+import com.wyn.utils.SeckillKeys;
+import com.wyn.utils.SeckillAdmissionController;
+import com.wyn.utils.SmileCacheCodec;
+import com.wyn.utils.TokenSessionCache;
+import com.wyn.utils.UserHolder;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 import javax.annotation.Resource;
 
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import static com.wyn.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.wyn.utils.RedisConstants.LOCK_SHOP_KEY;
+import static com.wyn.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_ORDER_DLQ_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.wyn.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+import static com.wyn.utils.RedisConstants.SECKILL_SHARDS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SpringBootTest
 class HmDianPingApplicationTests {
@@ -28,8 +81,76 @@ class HmDianPingApplicationTests {
     @Resource
     private RedisIdWorker redisIdWorker;
 
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private TokenSessionCache tokenSessionCache;
+
+    @Value("${hmdp.seckill.order.workers:4}")
+    private int orderWorkers;
+
+    @Value("${hmdp.login.local-ttl-seconds:10}")
+    private long loginLocalTtlSeconds;
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
 
+    /*本用例创建的秒杀券id及其库存分片数，用例结束后清理Redis中的相关key*/
+    private final Map<Long, Integer> createdSeckillVouchers = new HashMap<>();
+
+    /*本用例开始的时间，用于找出本用例写入Stream的订单消息*/
+    private long testStartedAt;
+
+    @BeforeEach
+    void recordStart() {
+        testStartedAt = System.currentTimeMillis();
+    }
+
+    /*删除秒杀券在Redis中的库存、订单集合、秒杀时间、分片数，以及写入各订单分区的消息*/
+    @AfterEach
+    void cleanUpSeckillKeys() {
+        for (Map.Entry<Long, Integer> entry : createdSeckillVouchers.entrySet()) {
+            Long voucherId = entry.getKey();
+            int shards = entry.getValue();
+            List<String> keys = new ArrayList<>();
+            keys.add(SECKILL_SHARDS_KEY + voucherId);
+            for (int shard = 0; shard < shards; shard++) {
+                keys.add(SeckillKeys.stockKey(voucherId, shard, shards));
+                keys.add(SeckillKeys.orderKey(voucherId, shard, shards));
+                keys.add(SeckillKeys.windowKey(voucherId, shard, shards));
+            }
+            stringRedisTemplate.delete(keys);
+        }
+        if (createdSeckillVouchers.isEmpty()) {
+            return;
+        }
+        Set<String> voucherIds = createdSeckillVouchers.keySet().stream().map(String::valueOf).collect(Collectors.toSet());
+        for (int partition = 0; partition < orderWorkers; partition++) {
+            String streamKey = SeckillKeys.streamKey(partition);
+            RecordId[] ids = stringRedisTemplate.opsForStream()
+                    .range(streamKey, Range.rightUnbounded(Range.Bound.inclusive(testStartedAt + "-0"))).stream()
+                    .filter(record -> voucherIds.contains(String.valueOf(record.getValue().get("voucherId"))))
+                    .map(MapRecord::getId)
+                    .toArray(RecordId[]::new);
+            if (ids.length > 0) {
+                stringRedisTemplate.opsForStream().delete(streamKey, ids);
+            }
+        }
+        createdSeckillVouchers.clear();
+    }
+
     @Test
     void testIdWorker() throws InterruptedException {
         CountDownLatch latch = new CountDownLatch(300);
@@ -59,4 +180,322 @@ class HmDianPingApplicationTests {
         caCheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 20L, TimeUnit.SECONDS);
     }
 
+    /*
+    * 登录会话本地缓存：本地条目过期后重新从Redis加载，同一个token在refreshInterval内也只刷新一次有效期
+    * 第一次读取后有效期被刷新为登录有效期；把有效期改短，等本地条目过期再读取，有效期不应再被刷新
+    * */
+    @Test
+    void testTokenRefreshOncePerInterval() throws InterruptedException {
+        String token = UUID.randomUUID().toString();
+        String key = LOGIN_USER_KEY + token;
+        Map<String, String> userMap = new HashMap<>(4);
+        userMap.put("id", "1");
+        userMap.put("nickName", "token-refresh-test");
+        stringRedisTemplate.opsForHash().putAll(key, userMap);
+        stringRedisTemplate.expire(key, 100, TimeUnit.SECONDS);
+        try {
+            //1. 第一次读取，批量刷新有效期
+            assertNotNull(tokenSessionCache.get(token));
+            Thread.sleep(1500);
+            assertTrue(stringRedisTemplate.getExpire(key, TimeUnit.SECONDS) > 100, "第一次读取应刷新有效期");
+
+            //2. 等本地条目过期，重新从Redis加载
+            stringRedisTemplate.expire(key, 100, TimeUnit.SECONDS);
+            Thread.sleep(TimeUnit.SECONDS.toMillis(loginLocalTtlSeconds) + 500);
+            assertNotNull(tokenSessionCache.get(token));
+            Thread.sleep(1500);
+            assertTrue(stringRedisTemplate.getExpire(key, TimeUnit.SECONDS) <= 100, "间隔内重新加载不应再次刷新有效期");
+        } finally {
+            stringRedisTemplate.delete(key);
+        }
+    }
+
+    /*
+    * 分片库存压测：分别用1、2、4个库存分片创建秒杀券，统计秒杀准入的QPS
+    * 分片key与对应分区的Stream带相同的hash tag，在Redis Cluster上会分散到不同节点，准入QPS随分片数增长；
+    * 单机Redis上各分片共用一个线程，QPS差别不大，因此只输出QPS，不断言随分片数增长
+    * 每个用户只请求一次，请求数等于库存：准入数应等于库存，之后再请求应提示库存不足，最终落库的订单数等于库存、不超卖
+    * */
+    @Test
+    void testShardedSeckillThroughput() throws InterruptedException {
+        int threads = 200;
+        int requestsPerThread = 50;
+        int stock = threads * requestsPerThread;
+        for (int shards : new int[]{1, 2, 4}) {
+            if (shards > orderWorkers) {
+                break;
+            }
+            Voucher voucher = new Voucher();
+            voucher.setShopId(1L).setTitle("分片库存压测券").setPayValue(100L).setActualValue(100L).setType(1)
+                    .setStock(stock).setStockShards(shards)
+                    .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusHours(1));
+            voucherService.addSeckillVoucher(voucher);
+            createdSeckillVouchers.put(voucher.getId(), shards);
+            try {
+                AtomicLong admitted = new AtomicLong();
+                CountDownLatch latch = new CountDownLatch(threads);
+                long userBase = shards * 1_000_000L;
+                long begin = System.currentTimeMillis();
+                for (int t = 0; t < threads; t++) {
+                    long firstUserId = userBase + (long) t * requestsPerThread;
+                    es.submit(() -> {
+                        try {
+                            for (int i = 0; i < requestsPerThread; i++) {
+                                UserDTO user = new UserDTO();
+                                user.setId(firstUserId + i);
+                                UserHolder.saveUser(user);
+                                if (voucherOrderService.seckillVoucher(voucher.getId()).getSuccess()) {
+                                    admitted.incrementAndGet();
+                                }
+                            }
+                        } finally {
+                            UserHolder.removeUser();
+                            latch.countDown();
+                        }
+                    });
+                }
+                latch.await();
+                long time = System.currentTimeMillis() - begin;
+                System.out.println("shards = " + shards + ", admitted = " + admitted.get()
+                        + ", time = " + time + ", qps = " + admitted.get() * 1000 / Math.max(time, 1));
+                assertEquals(stock, admitted.get(), "库存充足时每个用户都应准入");
+                long remaining = 0;
+                for (int shard = 0; shard < shards; shard++) {
+                    long shardStock = Long.parseLong(stringRedisTemplate.opsForValue()
+                            .get(SeckillKeys.stockKey(voucher.getId(), shard, shards)));
+                    assertTrue(shardStock >= 0, "分片库存不应为负，shard=" + shard);
+                    remaining += shardStock;
+                }
+                assertEquals(0, remaining, "准入数等于库存时所有分片都应扣完");
+
+                UserDTO late = new UserDTO();
+                late.setId(userBase + stock);
+                UserHolder.saveUser(late);
+                try {
+                    assertFalse(voucherOrderService.seckillVoucher(voucher.getId()).getSuccess(), "库存扣完后不应再准入");
+                } finally {
+                    UserHolder.removeUser();
+                }
+
+                int persisted = 0;
+                long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+                while (System.currentTimeMillis() < deadline) {
+                    persisted = voucherOrderService.query().eq("voucher_id", voucher.getId()).count();
+                    if (persisted >= stock) {
+                        break;
+                    }
+                    Thread.sleep(200);
+                }
+                assertEquals(stock, persisted, "落库的订单数应等于库存");
+            } finally {
+                voucherOrderService.remove(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucher.getId()));
+                seckillVoucherService.removeById(voucher.getId());
+                voucherService.removeById(voucher.getId());
+            }
+        }
+    }
+
+    /*
+    * 准入控制：请求耗时持续超过目标时，该券的limit应乘性减小，且不会低于minLimit
+    * */
+    @Test
+    void testAdmissionLimitDecreasesOnHighLatency() throws InterruptedException {
+        SeckillAdmissionController controller = new SeckillAdmissionController(new SimpleMeterRegistry(),
+                4, 1, 6, 5, 50, 200, 8);
+        Long voucherId = 1L;
+        double before = controller.limitOf(voucherId);
+        for (int i = 0; i < 5; i++) {
+            SeckillAdmissionController.Permit permit = controller.tryAcquire(voucherId);
+            assertNotNull(permit);
+            //模拟Redis变慢，超过5ms的目标耗时
+            Thread.sleep(20);
+            permit.release(false);
+        }
+        double after = controller.limitOf(voucherId);
+        assertTrue(after < before, "耗时超过目标后limit应减小，before=" + before + ", after=" + after);
+        assertTrue(after >= 1, "limit不应低于minLimit");
+    }
+
+    /*
+    * 毒消息：订单id与已有订单重复，无论重试多少次都会因主键冲突回滚
+    * 它应在投递次数达到上限后转入死信队列并从pending-list中移除，排在它后面的正常订单照常落库
+    * */
+    @Test
+    void testPoisonOrderDeadLettered() throws InterruptedException {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L).setTitle("毒消息测试券").setPayValue(100L).setActualValue(100L).setType(1)
+                .setStock(10).setStockShards(1)
+                .setBeginTime(LocalDateTime.now()).setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        createdSeckillVouchers.put(voucher.getId(), 1);
+        //userId取分区数的倍数，两条消息进入同一个分区
+        long userBase = orderWorkers * 10_000_000L;
+        String streamKey = SECKILL_ORDER_STREAM_KEY + 0;
+        VoucherOrder existing = new VoucherOrder().setId(redisIdWorker.nextId("order"))
+                .setUserId(userBase).setVoucherId(voucher.getId());
+        long validId = redisIdWorker.nextId("order");
+        try {
+            voucherOrderService.save(existing);
+            //1. 毒消息：与已有订单同一个id，不同用户
+            RecordId poison = stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(streamKey).ofMap(orderMessage(existing.getId(), userBase + orderWorkers, voucher.getId())));
+            //2. 排在它后面的正常订单
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(streamKey).ofMap(orderMessage(validId, userBase + 2L * orderWorkers, voucher.getId())));
+            assertNotNull(poison);
+
+            boolean deadLettered = false;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+            while (System.currentTimeMillis() < deadline) {
+                deadLettered = stringRedisTemplate.opsForStream().range(SECKILL_ORDER_DLQ_KEY, Range.unbounded()).stream()
+                        .map(MapRecord::getValue)
+                        .anyMatch(value -> existing.getId().toString().equals(value.get("id")));
+                if (deadLettered && voucherOrderService.getById(validId) != null) {
+                    break;
+                }
+                Thread.sleep(200);
+            }
+            assertTrue(deadLettered, "毒消息应转入死信队列");
+            assertNotNull(voucherOrderService.getById(validId), "毒消息之后的订单应正常落库");
+            assertTrue(stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP,
+                    Range.closed(poison.getValue(), poison.getValue()), 1L).isEmpty(), "毒消息应从pending-list中移除");
+            assertEquals(1, voucherOrderService.query().eq("id", existing.getId()).count());
+        } finally {
+            voucherOrderService.removeByIds(Arrays.asList(existing.getId(), validId));
+            seckillVoucherService.removeById(voucher.getId());
+            voucherService.removeById(voucher.getId());
+        }
+    }
+
+    private Map<String, String> orderMessage(long orderId, long userId, long voucherId) {
+        Map<String, String> message = new HashMap<>(4);
+        message.put("userId", String.valueOf(userId));
+        message.put("voucherId", String.valueOf(voucherId));
+        message.put("id", String.valueOf(orderId));
+        return message;
+    }
+
+    /*
+    * 缓存失效时的请求合并：店铺缓存过期后N个线程同时查询，统计实际查询数据库的次数
+    * 合并后passThrough与mutex两种方式都应只查询1次数据库
+    * */
+    @Test
+    void testSingleFlightOnExpiry() throws InterruptedException {
+        int threads = 200;
+        Long id = 1L;
+        for (String mode : new String[]{"passThrough", "mutex"}) {
+            caCheClient.delete(CACHE_SHOP_KEY + id);
+            AtomicInteger dbQueries = new AtomicInteger();
+            CountDownLatch ready = new CountDownLatch(1);
+            CountDownLatch latch = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                es.submit(() -> {
+                    try {
+                        ready.await();
+                        if ("mutex".equals(mode)) {
+                            caCheClient.queryWithMutex(CACHE_SHOP_KEY, LOCK_SHOP_KEY, id, Shop.class,
+                                    shopId -> countedQuery(shopId, dbQueries), 30L, TimeUnit.MINUTES);
+                        } else {
+                            caCheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class,
+                                    shopId -> countedQuery(shopId, dbQueries), 30L, TimeUnit.MINUTES);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        latch.countDown();
+                    }
+                });
+            }
+            ready.countDown();
+            latch.await();
+            System.out.println("mode = " + mode + ", requests = " + threads + ", dbQueries = " + dbQueries.get());
+            assertEquals(1, dbQueries.get(), mode + "模式下缓存失效后应只查询1次数据库");
+        }
+    }
+
+    private Shop countedQuery(Long id, AtomicInteger dbQueries) {
+        dbQueries.incrementAndGet();
+        try {
+            //模拟慢查询，让并发请求都落在缓存失效的窗口内
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return shopService.getById(id);
+    }
+
+    /*
+    * 布隆过滤器：构建完成后，不存在的店铺id直接返回null，不查询数据库
+    * 误判率为shop-fpp，100个不存在的id中只允许极少数因误判查询数据库
+    * */
+    @Test
+    void testBloomRejectsMissingShop() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+        while (!caCheClient.isBloomFilterReady(CACHE_SHOP_KEY) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+        assertTrue(caCheClient.isBloomFilterReady(CACHE_SHOP_KEY), "店铺布隆过滤器应构建完成");
+
+        AtomicInteger dbQueries = new AtomicInteger();
+        int missing = 100;
+        for (long id = Long.MAX_VALUE - missing; id < Long.MAX_VALUE; id++) {
+            Shop shop = caCheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, shopId -> {
+                dbQueries.incrementAndGet();
+                return null;
+            }, 30L, TimeUnit.MINUTES);
+            assertNull(shop);
+        }
+        assertTrue(dbQueries.get() <= 5, "不存在的id应被布隆过滤器拦截，实际查询数据库" + dbQueries.get() + "次");
+        caCheClient.deleteBatch(LongStream.range(Long.MAX_VALUE - missing, Long.MAX_VALUE)
+                .mapToObj(id -> CACHE_SHOP_KEY + id).collect(Collectors.toList()));
+    }
+
+    /*
+    * 缓存编解码压测：对比原来的hutool JSON路径与json/smile两种codec
+    * 分别解码Shop、ShopType列表和逻辑过期的RedisData，输出编码后的字节数和每次解码耗时
+    * 项目没有引入JMH，这里用预热后计时的循环代替，结果只用于比较几种方式的相对快慢
+    * */
+    @Test
+    void testCacheCodecDecode() {
+        int warmup = 20_000;
+        int iterations = 100_000;
+        Shop shop = shopService.getById(1L);
+        List<ShopType> shopTypes = shopTypeService.query().orderByAsc("sort").list();
+        RedisData redisData = new RedisData();
+        redisData.setData(shop);
+        redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+
+        //原来的路径：先解析为RedisData，再把data从JSONObject转换为Shop
+        String json = JSONUtil.toJsonStr(redisData);
+        benchmark("hutool RedisData", json.getBytes(StandardCharsets.UTF_8).length, warmup, iterations, () -> {
+            RedisData data = JSONUtil.toBean(json, RedisData.class);
+            return JSONUtil.toBean((JSONObject) data.getData(), Shop.class);
+        });
+
+        for (CacheCodec codec : new CacheCodec[]{new JsonCacheCodec(), new SmileCacheCodec()}) {
+            String name = codec.getClass().getSimpleName();
+            byte[] shopBytes = codec.encode(shop);
+            benchmark(name + " Shop", shopBytes.length, warmup, iterations, () -> codec.decode(shopBytes, Shop.class));
+            byte[] listBytes = codec.encode(shopTypes);
+            benchmark(name + " List<ShopType>", listBytes.length, warmup, iterations,
+                    () -> codec.decodeList(listBytes, ShopType.class));
+            byte[] logicalBytes = codec.encode(redisData);
+            benchmark(name + " RedisData", logicalBytes.length, warmup, iterations,
+                    () -> codec.decodeLogical(logicalBytes, Shop.class));
+        }
+    }
+
+    private void benchmark(String name, int size, int warmup, int iterations, Supplier<Object> decode) {
+        Object sink = null;
+        for (int i = 0; i < warmup; i++) {
+            sink = decode.get();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = decode.get();
+        }
+        long nanos = System.nanoTime() - begin;
+        System.out.println(name + ": bytes = " + size + ", ns/op = " + nanos / iterations + ", sink = " + (sink != null));
+    }
+
 }